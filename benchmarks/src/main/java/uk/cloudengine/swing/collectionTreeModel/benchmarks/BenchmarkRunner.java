@@ -0,0 +1,28 @@
+package uk.cloudengine.swing.collectionTreeModel.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point for {@code benchmarks.jar}.
+ * <p>
+ * Accepts the usual JMH command line and always adds the GC profiler, so that
+ * allocation rates ({@code gc.alloc.rate.norm}) are reported next to each
+ * timing.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException,
+            CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,56 @@
+package uk.cloudengine.swing.collectionTreeModel.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.cloudengine.swing.collectionTreeModel.CollectionTreeModel;
+import uk.cloudengine.swing.collectionTreeModel.Hierarchy;
+
+/**
+ * Measures the initial build of a {@link CollectionTreeModel} over varying
+ * record counts, hierarchy depths and per-level fanouts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BuildBenchmark {
+
+    @Param({ "1000", "100000" })
+    private int records;
+
+    @Param({ "2", "4" })
+    private int depth;
+
+    @Param({ "10", "100" })
+    private int fanout;
+
+    private List<int[]> data;
+
+    private Hierarchy<int[]> hierarchy;
+
+    @Setup
+    public void setUp() {
+        data = Records.generate(records, depth, fanout);
+        hierarchy = Records.hierarchy(depth);
+    }
+
+    @Benchmark
+    public CollectionTreeModel<int[]> build() {
+        return new CollectionTreeModel<>(data, hierarchy);
+    }
+}
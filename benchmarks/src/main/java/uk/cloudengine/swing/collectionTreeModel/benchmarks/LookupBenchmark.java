@@ -0,0 +1,70 @@
+package uk.cloudengine.swing.collectionTreeModel.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.cloudengine.swing.collectionTreeModel.CollectionTreeModel;
+
+/**
+ * Measures {@link CollectionTreeModel#getIndexOfChild(Object, Object)} on a
+ * single wide group, which is what {@code JTree} calls for every expansion,
+ * selection and model event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+    @Param({ "100", "10000" })
+    private int width;
+
+    private CollectionTreeModel<int[]> treeModel;
+
+    private Object root;
+
+    private Object firstChild;
+
+    private Object middleChild;
+
+    private Object lastChild;
+
+    @Setup
+    public void setUp() {
+        treeModel = new CollectionTreeModel<>(Records.generate(width * 4, 1,
+                width), Records.hierarchy(1));
+        root = treeModel.getRoot();
+        int childCount = treeModel.getChildCount(root);
+        firstChild = treeModel.getChild(root, 0);
+        middleChild = treeModel.getChild(root, childCount / 2);
+        lastChild = treeModel.getChild(root, childCount - 1);
+    }
+
+    @Benchmark
+    public int indexOfFirstChild() {
+        return treeModel.getIndexOfChild(root, firstChild);
+    }
+
+    @Benchmark
+    public int indexOfMiddleChild() {
+        return treeModel.getIndexOfChild(root, middleChild);
+    }
+
+    @Benchmark
+    public int indexOfLastChild() {
+        return treeModel.getIndexOfChild(root, lastChild);
+    }
+}
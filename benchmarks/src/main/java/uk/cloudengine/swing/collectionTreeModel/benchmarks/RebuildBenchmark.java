@@ -0,0 +1,60 @@
+package uk.cloudengine.swing.collectionTreeModel.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.cloudengine.swing.collectionTreeModel.CollectionTreeModel;
+import uk.cloudengine.swing.collectionTreeModel.Hierarchy;
+
+/**
+ * Measures {@link CollectionTreeModel#rebuild()} after the top two levels of
+ * the hierarchy have been swapped, as the demo does when the user reorders the
+ * hierarchy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RebuildBenchmark {
+
+    @Param({ "1000", "100000" })
+    private int records;
+
+    @Param({ "3" })
+    private int depth;
+
+    @Param({ "10", "100" })
+    private int fanout;
+
+    private Hierarchy<int[]> hierarchy;
+
+    private CollectionTreeModel<int[]> treeModel;
+
+    @Setup
+    public void setUp() {
+        List<int[]> data = Records.generate(records, depth, fanout);
+        hierarchy = Records.hierarchy(depth);
+        treeModel = new CollectionTreeModel<>(data, hierarchy);
+    }
+
+    @Benchmark
+    public Object swapAndRebuild() {
+        hierarchy.swapNodes(0, 1);
+        treeModel.rebuild();
+        return treeModel.getRoot();
+    }
+}
@@ -0,0 +1,43 @@
+package uk.cloudengine.swing.collectionTreeModel.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import uk.cloudengine.swing.collectionTreeModel.Hierarchy;
+
+/**
+ * Synthetic records and hierarchies shared by the benchmarks.
+ * <p>
+ * Each record carries one key per level, drawn uniformly from
+ * {@code [0, fanout)} with a fixed seed so that runs are comparable.
+ */
+final class Records {
+
+    private static final long SEED = 20150601L;
+
+    private Records() {
+    }
+
+    static List<int[]> generate(int records, int depth, int fanout) {
+        Random random = new Random(SEED);
+        List<int[]> result = new ArrayList<>(records);
+        for (int i = 0; i < records; i++) {
+            int[] keys = new int[depth];
+            for (int level = 0; level < depth; level++) {
+                keys[level] = random.nextInt(fanout);
+            }
+            result.add(keys);
+        }
+        return result;
+    }
+
+    static Hierarchy<int[]> hierarchy(int depth) {
+        Hierarchy<int[]> hierarchy = new Hierarchy<>();
+        for (int level = 0; level < depth; level++) {
+            final int l = level;
+            hierarchy.addNode(keys -> "L" + l + ":" + keys[l], "level" + l);
+        }
+        return hierarchy;
+    }
+}
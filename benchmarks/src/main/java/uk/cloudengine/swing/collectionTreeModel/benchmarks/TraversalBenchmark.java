@@ -0,0 +1,68 @@
+package uk.cloudengine.swing.collectionTreeModel.benchmarks;
+
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.tree.TreeNode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.cloudengine.swing.collectionTreeModel.CollectionTreeModel;
+import uk.cloudengine.swing.collectionTreeModel.TreeUtils;
+
+/**
+ * Measures whole-tree walks: the {@link TreeUtils.PreOrderEnumeration} and
+ * {@link TreeUtils#toString(TreeNode)}, which walks the tree and computes
+ * each node's level.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraversalBenchmark {
+
+    @Param({ "1000", "100000" })
+    private int records;
+
+    @Param({ "3" })
+    private int depth;
+
+    @Param({ "10" })
+    private int fanout;
+
+    private TreeNode root;
+
+    @Setup
+    public void setUp() {
+        CollectionTreeModel<int[]> treeModel = new CollectionTreeModel<>(
+                Records.generate(records, depth, fanout),
+                Records.hierarchy(depth));
+        root = (TreeNode) treeModel.getRoot();
+    }
+
+    @Benchmark
+    public void preOrderEnumeration(Blackhole blackhole) {
+        Enumeration<TreeNode> nodes = TreeUtils.getPreOrderEnumeration(root);
+        while (nodes.hasMoreElements()) {
+            blackhole.consume(nodes.nextElement());
+        }
+    }
+
+    @Benchmark
+    public String treeToString() {
+        return TreeUtils.toString(root);
+    }
+}
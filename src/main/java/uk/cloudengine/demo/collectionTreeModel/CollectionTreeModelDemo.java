@@ -7,6 +7,7 @@ import static uk.cloudengine.swing.UIConstants.GAP;
 import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.swing.DefaultListModel;
 import javax.swing.JList;
@@ -108,8 +109,8 @@ public class CollectionTreeModelDemo extends JPanel {
 
         controlPanel.setSwapListener(evt -> {
             bookHierarchy.swapNodes(evt.getSwapIndex0(), evt.getSwapIndex1());
-            treeModel.rebuild();
-            TreeUtils.expandAll(jTree);
+            treeModel.rebuildAsync(ForkJoinPool.commonPool()).thenRun(
+                    () -> TreeUtils.expandAll(jTree));
         });
 
         return controlPanel;
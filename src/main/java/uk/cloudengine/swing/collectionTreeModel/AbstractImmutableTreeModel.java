@@ -1,5 +1,7 @@
 package uk.cloudengine.swing.collectionTreeModel;
 
+import static com.google.common.base.Preconditions.checkState;
+
 import java.util.EventListener;
 
 import javax.swing.event.EventListenerList;
@@ -9,24 +11,33 @@ import javax.swing.tree.TreeModel;
 import javax.swing.tree.TreeNode;
 import javax.swing.tree.TreePath;
 
+import uk.cloudengine.swing.collectionTreeModel.TreeModelEventBatch.Type;
+
 /**
  * <p>
  * A bare bones immutable implementation of {@link TreeModel}. Immutable in the
- * sense that it assumes there will be no adding, removing, modifying individual
- * nodes; hence the use of {@link ImmutableTreeNode} and
+ * sense that nodes cannot be added, removed or modified through the
+ * {@link TreeModel} interface; hence the use of {@link ImmutableTreeNode} and
  * {@link valueForPathChanged} has an empty implementation.
  * </p>
  * <p>
- * Structural change listeners are supported. At the structural level the whole
- * tree may be rebuilt.
+ * Change listeners are supported. At the structural level the whole tree may be
+ * rebuilt, while subclasses that insert, remove or replace individual nodes can
+ * notify listeners of just those nodes. Events may be buffered and merged
+ * between {@link #beginBatch()} and {@link #endBatch()}.
  * </p>
+ * @param <N> The type of the nodes in the tree.
  * @see ImmutableTreeNode
  * @see CollectionTreeModel
  */
-abstract class AbstractImmutableTreeModel implements TreeModel {
+abstract class AbstractImmutableTreeModel<N extends TreeNode> implements
+        TreeModel {
 
     protected EventListenerList listenerList = new EventListenerList();
-    protected ImmutableTreeNode root;
+    protected N root;
+
+    private int batchDepth;
+    private TreeModelEventBatch batch;
 
     // In the absence of a generic TreeModel interface this may be handy when we
     // can guarantee the argument object is of type TreeNode.
@@ -98,6 +109,50 @@ abstract class AbstractImmutableTreeModel implements TreeModel {
         return listenerList.getListeners(listenerType);
     }
 
+    /**
+     * <p>
+     * Starts buffering the events this model fires until the matching
+     * {@link #endBatch()}. Batches may be nested; the events are delivered
+     * when the outermost batch ends.
+     * </p>
+     * <p>
+     * Many small changes then reach listeners as a few events: those on the
+     * same parent are merged into one removed, one inserted and one changed
+     * event, and those below a node inserted, removed or restructured within
+     * the batch are absorbed by that node's event. End a batch in a
+     * <code>finally</code> block.
+     * </p>
+     */
+    public void beginBatch() {
+        if (batchDepth++ == 0) {
+            batch = new TreeModelEventBatch();
+        }
+    }
+
+    /**
+     * Ends a batch started with {@link #beginBatch()}, delivering the merged
+     * events if it is the outermost.
+     * @throws IllegalStateException if no batch is in progress
+     */
+    public void endBatch() {
+        checkState(batchDepth > 0, "No batch in progress.");
+        if (--batchDepth > 0) {
+            return;
+        }
+        TreeModelEventBatch ended = batch;
+        batch = null;
+        for (TreeModelEventBatch.Event e : ended.merge()) {
+            dispatch(e.type, e.source, e.path, e.childIndices, e.children);
+        }
+    }
+
+    /**
+     * @return whether a batch is in progress.
+     */
+    public boolean isBatching() {
+        return batchDepth > 0;
+    }
+
     /**
      * fireTreeStructureChanged.
      * @param source The node where the model has changed
@@ -107,13 +162,106 @@ abstract class AbstractImmutableTreeModel implements TreeModel {
      */
     protected void fireTreeStructureChanged(Object source, Object[] path,
             int[] childIndices, Object[] children) {
-        TreeModelListener[] listeners = getTreeModelListeners();
-        if (listeners.length == 0) {
+        fire(Type.STRUCTURE_CHANGED, source, path, childIndices, children);
+    }
+
+    /**
+     * fireTreeNodesInserted.
+     * @param source The node where the model has changed
+     * @param path The path to the parent of the inserted nodes
+     * @param childIndices The indices of the inserted elements
+     * @param children The inserted elements
+     */
+    protected void fireTreeNodesInserted(Object source, Object[] path,
+            int[] childIndices, Object[] children) {
+        fire(Type.INSERTED, source, path, childIndices, children);
+    }
+
+    /**
+     * fireTreeNodesRemoved.
+     * @param source The node where the model has changed
+     * @param path The path to the parent of the removed nodes
+     * @param childIndices The indices the removed elements had
+     * @param children The removed elements
+     */
+    protected void fireTreeNodesRemoved(Object source, Object[] path,
+            int[] childIndices, Object[] children) {
+        fire(Type.REMOVED, source, path, childIndices, children);
+    }
+
+    /**
+     * fireTreeNodesChanged.
+     * @param source The node where the model has changed
+     * @param path The path to the parent of the changed nodes
+     * @param childIndices The indices of the changed elements
+     * @param children The changed elements
+     */
+    protected void fireTreeNodesChanged(Object source, Object[] path,
+            int[] childIndices, Object[] children) {
+        fire(Type.CHANGED, source, path, childIndices, children);
+    }
+
+    private void fire(Type type, Object source, Object[] path,
+            int[] childIndices, Object[] children) {
+        // With nobody listening there is nothing to buffer or deliver.
+        if (listenerList.getListenerCount() == 0) {
             return;
         }
-        TreeModelEvent event = new TreeModelEvent(source, path, childIndices,
-                children);
-        for (int i = listeners.length - 1; i >= 0; --i)
-            listeners[i].treeStructureChanged(event);
+        if (batch != null) {
+            batch.add(type, source, path, childIndices, children);
+        } else {
+            dispatch(type, source, path, childIndices, children);
+        }
+    }
+
+    /**
+     * Notifies the listeners, last registered first. The listener list is
+     * read without copying and the event created only once a listener is
+     * found.
+     */
+    private void dispatch(Type type, Object source, Object[] path,
+            int[] childIndices, Object[] children) {
+        Object[] listeners = listenerList.getListenerList();
+        TreeModelEvent event = null;
+
+        for (int i = listeners.length - 2; i >= 0; i -= 2) {
+            if (listeners[i] != TreeModelListener.class) {
+                continue;
+            }
+            if (event == null) {
+                event = new TreeModelEvent(source, path, childIndices,
+                        children);
+            }
+            TreeModelListener listener = (TreeModelListener) listeners[i + 1];
+            switch (type) {
+            case STRUCTURE_CHANGED:
+                listener.treeStructureChanged(event);
+                break;
+            case INSERTED:
+                listener.treeNodesInserted(event);
+                break;
+            case REMOVED:
+                listener.treeNodesRemoved(event);
+                break;
+            case CHANGED:
+                listener.treeNodesChanged(event);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the path from the root down to, and including, the given node.
+     * @param node The node to return the path for
+     * @return the nodes on the path, root first
+     */
+    protected TreeNode[] getPathToRoot(TreeNode node) {
+        TreeNode[] path = new TreeNode[TreeUtils.getLevel(node) + 1];
+
+        for (int i = path.length - 1; i >= 0; i--) {
+            path[i] = node;
+            node = node.getParent();
+        }
+        return path;
     }
 }
@@ -0,0 +1,135 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * <p>
+ * A reduction of the records under each group node to a single value, such as
+ * the number of records or the sum of their prices. Aggregates are registered
+ * with {@link CollectionTreeModel.Builder#aggregate(Object, Aggregate)},
+ * computed in one pass when the tree is built and stored on the group nodes,
+ * so a cell renderer can show them without walking the subtree:
+ * </p>
+ * <p>
+ * <blockquote><pre>
+ * CollectionTreeModel{@code<Book>} treeModel =
+ *     CollectionTreeModel.Builder{@code<>}(books)
+ *         .addNode(b -> b.publisher)
+ *         .addNode(b -> b.title)
+ *         .aggregate("titles", Aggregate.count())
+ *         .aggregate("value", Aggregate.sum(b -> b.price))
+ *         .build();
+ *
+ * double titles = treeModel.getAggregate(publisherNode, "titles");
+ * </pre></blockquote>
+ * </p>
+ * <p>
+ * When records are added, removed or updated the aggregates are adjusted
+ * along the affected path only. Counts and sums are adjusted by the record's
+ * value; a minimum or maximum is recomputed from a group's children only when
+ * the record removed held the extreme value.
+ * </p>
+ * @param <T> The type of the source records.
+ * @see CollectionTreeModel#getAggregate(Object, Object)
+ */
+public final class Aggregate<T> {
+
+    private final ToDoubleFunction<? super T> valueFunction;
+    private final double identity;
+    private final DoubleBinaryOperator combiner;
+    private final DoubleBinaryOperator inverse;
+    private final boolean selective;
+
+    private Aggregate(ToDoubleFunction<? super T> valueFunction,
+            double identity, DoubleBinaryOperator combiner,
+            DoubleBinaryOperator inverse, boolean selective) {
+        this.valueFunction = checkNotNull(valueFunction);
+        this.identity = identity;
+        this.combiner = checkNotNull(combiner);
+        this.inverse = inverse;
+        this.selective = selective;
+    }
+
+    /**
+     * The number of records under a node.
+     */
+    public static <T> Aggregate<T> count() {
+        return new Aggregate<>(r -> 1, 0, Double::sum, (a, b) -> a - b, false);
+    }
+
+    /**
+     * The sum of the given value over the records under a node; zero for an
+     * empty group.
+     */
+    public static <T> Aggregate<T> sum(ToDoubleFunction<? super T> value) {
+        return new Aggregate<>(value, 0, Double::sum, (a, b) -> a - b, false);
+    }
+
+    /**
+     * The least of the given value over the records under a node; positive
+     * infinity for an empty group.
+     */
+    public static <T> Aggregate<T> min(ToDoubleFunction<? super T> value) {
+        return new Aggregate<>(value, Double.POSITIVE_INFINITY, Math::min,
+                null, true);
+    }
+
+    /**
+     * The greatest of the given value over the records under a node; negative
+     * infinity for an empty group.
+     */
+    public static <T> Aggregate<T> max(ToDoubleFunction<? super T> value) {
+        return new Aggregate<>(value, Double.NEGATIVE_INFINITY, Math::max,
+                null, true);
+    }
+
+    /**
+     * A general reduction of the given value over the records under a node.
+     * The combiner must be associative and commutative, with the identity as
+     * its identity element. As it cannot be reversed, a group's value is
+     * recomputed from its children whenever a record under it is removed.
+     * @param value the value of each record
+     * @param identity the value of an empty group
+     * @param combiner combines two values
+     * @return the aggregate
+     */
+    public static <T> Aggregate<T> of(ToDoubleFunction<? super T> value,
+            double identity, DoubleBinaryOperator combiner) {
+        return new Aggregate<>(value, identity, combiner, null, false);
+    }
+
+    double valueOf(T dataRecord) {
+        return valueFunction.applyAsDouble(dataRecord);
+    }
+
+    double identity() {
+        return identity;
+    }
+
+    double combine(double aggregate, double value) {
+        return combiner.applyAsDouble(aggregate, value);
+    }
+
+    /**
+     * Whether removing the given value from the aggregate requires it to be
+     * recomputed from the remaining values.
+     */
+    boolean needsRecompute(double aggregate, double removed) {
+        if (inverse != null) {
+            return false;
+        }
+        return !selective || Double.compare(aggregate, removed) == 0;
+    }
+
+    /**
+     * Removes a value from the aggregate, where
+     * {@link #needsRecompute(double, double)} answered false.
+     */
+    double remove(double aggregate, double removed) {
+        return (inverse == null) ? aggregate : inverse.applyAsDouble(
+                aggregate, removed);
+    }
+}
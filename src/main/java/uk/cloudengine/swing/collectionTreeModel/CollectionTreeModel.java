@@ -1,12 +1,45 @@
 package uk.cloudengine.swing.collectionTreeModel;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.swing.SwingUtilities;
+import javax.swing.tree.TreeNode;
+import javax.swing.tree.TreePath;
+
+import com.google.common.collect.ImmutableList;
 
 /**
  * <p>
@@ -84,32 +117,542 @@ import java.util.stream.Collectors;
  * </p>
  * @param <T>
  * @see Hierarchy
+ * @see PagedTreeModel
  */
-public class CollectionTreeModel<T> extends AbstractImmutableTreeModel {
+public class CollectionTreeModel<T> extends
+        AbstractImmutableTreeModel<ImmutableTreeNode> {
+
+    // Below this many records a parallel build task groups its records
+    // directly rather than splitting further.
+    private static final int PARALLEL_BUILD_THRESHOLD = 4096;
 
     private final Hierarchy<T> hierarchy;
+    // Null for a model built from a stream, iterator or spliterator.
     private final Collection<T> srcData;
+    // The records of such a model until the first build consumes them.
+    private Spliterator<T> pendingRecords;
+    private final boolean retainRecords;
+    private final boolean retainChildIndex;
+    private final ForkJoinPool buildPool;
+    private final boolean lazy;
+    private final boolean cacheKeys;
+    private final boolean diffRebuild;
+    private final ImmutableList<Object> aggregateIds;
+    private final ImmutableList<Aggregate<? super T>> aggregates;
+    private final Map<T, RecordTreeNode<T>> recordIndex;
+    private final boolean flyweightLeaves;
+    private volatile KeyCache<T> keyCache;
+    private Map<Object, ValueDictionary> dictionaries;
+    private final AtomicReference<CompletableFuture<Void>> pendingRebuild =
+            new AtomicReference<>();
 
     private CollectionTreeModel(Builder<T> builder) {
-        this(builder.srcData, builder.hierarchy);
+        this.srcData = builder.srcData;
+        this.pendingRecords = builder.records;
+        this.retainRecords = builder.retainRecords;
+        this.hierarchy = checkNotNull(builder.hierarchy);
+        this.retainChildIndex = builder.retainChildIndex;
+        this.buildPool = builder.buildPool;
+        this.lazy = builder.lazy;
+        this.cacheKeys = builder.cacheKeys;
+        this.diffRebuild = builder.diffRebuild;
+        this.aggregateIds = ImmutableList.copyOf(builder.aggregates.keySet());
+        this.aggregates = ImmutableList.copyOf(builder.aggregates.values());
+        this.recordIndex = builder.indexRecords ? new IdentityHashMap<>()
+                : null;
+        this.flyweightLeaves = builder.flyweightLeaves;
+        build();
     }
 
     public CollectionTreeModel(Collection<T> srcData, Hierarchy<T> hierarchy) {
-        this.srcData = checkNotNull(srcData);
-        this.hierarchy = checkNotNull(hierarchy);
-        build();
+        this(new Builder<>(srcData, hierarchy));
     }
 
     private void build() {
-        root = new ImmutableTreeNode("root");
-        srcData.forEach(dataRecord -> addDataRecordToRoot(dataRecord));
+        cancelPendingRebuild(null);
+        Map<Object, ValueDictionary> newDictionaries =
+                new ConcurrentHashMap<>();
+        root = createTree(getSourceRecords(), newDictionaries, () -> false);
+        dictionaries = newDictionaries;
+        indexRecords();
+    }
+
+    /**
+     * Returns the records to build from: those of the source collection or,
+     * for a model built from a stream, the stream itself the first time and
+     * the records gathered from the current leaves after that.
+     * @exception IllegalStateException if a model built from a stream did not
+     *            retain its records.
+     */
+    @SuppressWarnings("unchecked")
+    private Spliterator<T> getSourceRecords() {
+        if (srcData != null) {
+            return srcData.spliterator();
+        }
+        Spliterator<T> records = pendingRecords;
+        if (records != null) {
+            pendingRecords = null;
+            return records;
+        }
+        checkState(retainRecords,
+                "Records were not retained, so cannot be regrouped.");
+        return TreeUtils.leaves(root)
+                .filter(RecordTreeNode.class::isInstance)
+                .map(leaf -> ((RecordTreeNode<T>) leaf).getRecord())
+                .collect(Collectors.toList()).spliterator();
+    }
+
+    /**
+     * Maps each record, by identity, to its leaf; the first leaf where the
+     * same record appears more than once.
+     */
+    @SuppressWarnings("unchecked")
+    private void indexRecords() {
+        if (recordIndex == null) {
+            return;
+        }
+        recordIndex.clear();
+        TreeUtils.leaves(root)
+                .filter(RecordTreeNode.class::isInstance)
+                .map(leaf -> (RecordTreeNode<T>) leaf)
+                .forEach(leaf -> recordIndex.putIfAbsent(leaf.getRecord(),
+                        leaf));
+    }
+
+    /**
+     * Returns the path from the root to the leaf of the given record, for
+     * selecting or scrolling to a record in a JTree. The record is found by
+     * identity in O(depth) time.
+     * @param dataRecord the record
+     * @return the path to the record's leaf, or null if the record is not in
+     *         the tree
+     * @exception IllegalStateException if the model was not built with
+     *            {@link Builder#indexRecords()}.
+     */
+    public TreePath getPathFor(T dataRecord) {
+        checkState(recordIndex != null, "Records are not indexed.");
+        RecordTreeNode<T> leaf = recordIndex.get(dataRecord);
+        return (leaf == null) ? null : new TreePath(getPathToRoot(leaf));
+    }
+
+    /**
+     * Builds a new tree from the source data without touching the current
+     * one, so it may run on any thread.
+     * @param records the records to group; a lazy or key caching model groups
+     *        the source collection instead
+     * @param newDictionaries the interning dictionaries for the new tree
+     * @param cancelled checked as records are grouped; once it answers true
+     *        the build stops with a CancellationException
+     * @return the root of the new tree
+     */
+    private ImmutableTreeNode createTree(Spliterator<T> records,
+            Map<Object, ValueDictionary> newDictionaries,
+            BooleanSupplier cancelled) {
+        // The whole build works from one snapshot of the hierarchy.
+        Hierarchy.Snapshot<T> snapshot = hierarchy.getSnapshot();
+        ImmutableList<Function<T, Object>> providers = getProviders(snapshot,
+                newDictionaries);
+        ImmutableTreeNode newRoot;
+
+        if (lazy) {
+            // Lazy nodes drop their own indices as they are grouped.
+            newRoot = new ImmutableTreeNode("root");
+            new LazyTreeNode.Grouping<>(providers, snapshot.nodeIds,
+                    hierarchy, retainChildIndex).group(newRoot, srcData, 0);
+            return newRoot;
+        }
+
+        if (cacheKeys) {
+            newRoot = createTreeFromKeyCache(snapshot, newDictionaries,
+                    cancelled);
+        } else {
+            PartialTreeTask task = new PartialTreeTask(records, providers,
+                    cancelled);
+            newRoot = (buildPool == null) ? task.compute() : buildPool
+                    .invoke(task);
+        }
+
+        if (!retainChildIndex) {
+            dropChildIndices(newRoot);
+        }
+        sortChildren(newRoot, snapshot.nodeIds);
+        computeAggregates(newRoot);
+        return newRoot;
+    }
+
+    /**
+     * Sorts the children of every group whose child level has a comparator,
+     * once the records have been grouped.
+     */
+    private void sortChildren(ImmutableTreeNode newRoot,
+            List<Object> nodeIds) {
+        if (!hierarchy.hasComparators()) {
+            return;
+        }
+        List<Comparator<Object>> comparators = getComparators(nodeIds);
+
+        TreeUtils.stream(newRoot, TreeUtils.Order.PRE_ORDER)
+                .map(ImmutableTreeNode.class::cast)
+                .filter(ImmutableTreeNode::getAllowsChildren)
+                .forEach(node -> {
+                    int level = node.getLevel();
+                    if (level < comparators.size()
+                            && comparators.get(level) != null) {
+                        node.sortChildren(comparators.get(level));
+                    }
+                });
+    }
+
+    /**
+     * Returns the comparator of each hierarchy level, null where the level is
+     * in first-seen order.
+     */
+    private List<Comparator<Object>> getComparators(List<Object> nodeIds) {
+        return nodeIds.stream()
+                .map(hierarchy::getComparator)
+                .collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    /**
+     * <p>
+     * Sets the comparator ordering the user objects of the given hierarchy
+     * node and resorts the children of the groups at that level in place,
+     * without regrouping any records. Listeners are told of a structure
+     * change for each group whose children were reordered. Groups of a lazy
+     * model that have not been loaded yet are sorted as they are loaded.
+     * </p>
+     * <p>
+     * Passing null restores first-seen ordering from the next rebuild; the
+     * current order is left as it is.
+     * </p>
+     * @param nodeId The unique node identifier.
+     * @param comparator the comparator, or null.
+     * @exception IllegalArgumentException if there is no node with the id.
+     * @see Hierarchy#setComparator(Object, Comparator)
+     */
+    public void setComparator(Object nodeId, Comparator<?> comparator) {
+        hierarchy.setComparator(nodeId, comparator);
+        Comparator<Object> levelComparator = hierarchy.getComparator(nodeId);
+        if (levelComparator == null) {
+            return;
+        }
+
+        List<ImmutableTreeNode> groups = Collections.singletonList(root);
+        for (int level = 0; level < hierarchy.indexOf(nodeId); level++) {
+            List<ImmutableTreeNode> nextGroups = new ArrayList<>();
+
+            for (ImmutableTreeNode group : groups) {
+                if (group.hasLoadedChildren()) {
+                    nextGroups.addAll(Collections.list(group.children()));
+                }
+            }
+            groups = nextGroups;
+        }
+
+        for (ImmutableTreeNode group : groups) {
+            if (group.hasLoadedChildren()
+                    && group.sortChildren(levelComparator)) {
+                fireTreeStructureChanged(this, getPathToRoot(group), null,
+                        null);
+            }
+        }
+    }
+
+    private ImmutableTreeNode createTreeFromKeyCache(
+            Hierarchy.Snapshot<T> snapshot,
+            Map<Object, ValueDictionary> newDictionaries,
+            BooleanSupplier cancelled) {
+        KeyCache<T> cache = keyCache;
+        if (cache == null) {
+            cache = new KeyCache<>(srcData);
+            keyCache = cache;
+        }
+        List<Object> nodeIds = snapshot.nodeIds;
+        List<Function<T, Object>> providers = snapshot.providers;
+        Object[][] columns = new Object[nodeIds.size()][];
+
+        for (int level = 0; level < columns.length; level++) {
+            Object nodeId = nodeIds.get(level);
+            columns[level] = cache.getColumn(nodeId, providers.get(level));
+
+            // Interning in place is idempotent and refills the dictionary.
+            if (hierarchy.isInterned(nodeId)) {
+                ValueDictionary dictionary = getOrCreateDictionary(
+                        newDictionaries, nodeId);
+                Object[] column = columns[level];
+
+                for (int i = 0; i < column.length; i++) {
+                    column[i] = dictionary.intern(column[i]);
+                }
+            }
+        }
+
+        KeyRangeTask task = new KeyRangeTask(cache, columns, 0, cache.size(),
+                cancelled);
+        return (buildPool == null) ? task.compute() : buildPool.invoke(task);
+    }
+
+    private static void checkNotCancelled(BooleanSupplier cancelled) {
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException("Build superseded.");
+        }
+    }
+
+    /**
+     * Discards the cached provider results, if keys are being cached, so that
+     * the next {@link #rebuild()} captures the source collection afresh and
+     * invokes the providers again. Call this after the records, or the values
+     * the providers derive from them, have changed. The incremental record
+     * methods do so themselves.
+     * @see Builder#cacheKeys()
+     */
+    public void invalidateKeyCache() {
+        keyCache = null;
+    }
+
+    private static void dropChildIndices(ImmutableTreeNode root) {
+        Enumeration<TreeNode> en = TreeUtils.getPreOrderEnumeration(root);
+
+        while (en.hasMoreElements()) {
+            ((ImmutableTreeNode) en.nextElement()).dropChildIndex();
+        }
+    }
+
+    /**
+     * Computes the aggregates of every group node in the given subtree in a
+     * single post-order pass, each group combining those of its children.
+     */
+    private void computeAggregates(ImmutableTreeNode subtreeRoot) {
+        if (aggregates.isEmpty()) {
+            return;
+        }
+        TreeUtils.stream(subtreeRoot, TreeUtils.Order.POST_ORDER)
+                .map(ImmutableTreeNode.class::cast)
+                .filter(ImmutableTreeNode::getAllowsChildren)
+                .forEach(node -> node.setAggregates(combineChildren(node)));
+    }
+
+    /**
+     * Recomputes the aggregates of every group node after a diff rebuild and
+     * notifies listeners of the groups whose aggregates changed, as those
+     * whose children did not are otherwise reported unchanged.
+     */
+    private void recomputeAggregates() {
+        if (aggregates.isEmpty()) {
+            return;
+        }
+        List<ImmutableTreeNode> changed = new ArrayList<>();
+        TreeUtils.stream(root, TreeUtils.Order.POST_ORDER)
+                .map(ImmutableTreeNode.class::cast)
+                .filter(ImmutableTreeNode::getAllowsChildren)
+                .forEach(node -> {
+                    double[] values = combineChildren(node);
+                    if (!Arrays.equals(values, node.getAggregates())) {
+                        node.setAggregates(values);
+                        changed.add(node);
+                    }
+                });
+
+        boolean batched = beginBatchIfListened();
+        try {
+            for (ImmutableTreeNode node : changed) {
+                ImmutableTreeNode parent = (ImmutableTreeNode) node
+                        .getParent();
+                if (parent == null) {
+                    fireTreeNodesChanged(this, new Object[] { root }, null,
+                            null);
+                } else {
+                    fireTreeNodesChanged(this, getPathToRoot(parent),
+                            new int[] { parent.getIndex(node) },
+                            new Object[] { node });
+                }
+            }
+        } finally {
+            if (batched) {
+                endBatch();
+            }
+        }
+    }
+
+    private double[] combineChildren(ImmutableTreeNode group) {
+        double[] values = new double[aggregates.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = aggregates.get(i).identity();
+        }
+
+        Enumeration<ImmutableTreeNode> children = group.children();
+        while (children.hasMoreElements()) {
+            ImmutableTreeNode child = children.nextElement();
+            double[] childValues = child.getAllowsChildren() ? child
+                    .getAggregates() : getLeafAggregates(child);
+
+            for (int i = 0; i < values.length; i++) {
+                values[i] = aggregates.get(i).combine(values[i],
+                        childValues[i]);
+            }
+        }
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    private double[] getLeafAggregates(ImmutableTreeNode leaf) {
+        T dataRecord = ((RecordTreeNode<T>) leaf).getRecord();
+        double[] values = new double[aggregates.size()];
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = aggregates.get(i).valueOf(dataRecord);
+        }
+        return values;
+    }
+
+    /**
+     * Combines the aggregates of an added leaf into the given group and its
+     * ancestors.
+     */
+    private void addToAggregates(ImmutableTreeNode group, double[] leafValues) {
+        for (TreeNode node = group; node != null; node = node.getParent()) {
+            double[] values = ((ImmutableTreeNode) node).getAggregates();
+
+            for (int i = 0; i < values.length; i++) {
+                values[i] = aggregates.get(i).combine(values[i],
+                        leafValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Takes the aggregates of a removed leaf out of the given group and its
+     * ancestors, which no longer contain it. A group whose aggregates cannot
+     * simply be reversed is recomputed from its children, which have already
+     * been brought up to date.
+     */
+    private void removeFromAggregates(ImmutableTreeNode group,
+            double[] leafValues) {
+        for (TreeNode node = group; node != null; node = node.getParent()) {
+            ImmutableTreeNode groupNode = (ImmutableTreeNode) node;
+            double[] values = groupNode.getAggregates();
+            boolean recompute = false;
+
+            for (int i = 0; i < values.length && !recompute; i++) {
+                recompute = aggregates.get(i).needsRecompute(values[i],
+                        leafValues[i]);
+            }
+            if (recompute) {
+                groupNode.setAggregates(combineChildren(groupNode));
+            } else {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = aggregates.get(i).remove(values[i],
+                            leafValues[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Notifies listeners that the given group and its ancestors have changed,
+     * as their aggregates have, so that renderers showing them are updated.
+     */
+    private void fireAggregatesChanged(ImmutableTreeNode group) {
+        ImmutableTreeNode node = group;
+        while (node != root) {
+            ImmutableTreeNode parent = (ImmutableTreeNode) node.getParent();
+            fireTreeNodesChanged(this, getPathToRoot(parent),
+                    new int[] { parent.getIndex(node) }, new Object[] { node });
+            node = parent;
+        }
+        fireTreeNodesChanged(this, new Object[] { root }, null, null);
+    }
+
+    /**
+     * Returns the value of an aggregate for the given node: for a group node
+     * over the records beneath it and for a leaf over its own record.
+     * @param node a node of this model
+     * @param aggregateId the id the aggregate was registered with
+     * @return the aggregate value
+     * @exception IllegalArgumentException if there is no aggregate with the id.
+     * @see Builder#aggregate(Object, Aggregate)
+     */
+    public double getAggregate(Object node, Object aggregateId) {
+        int index = aggregateIds.indexOf(aggregateId);
+        checkArgument(index >= 0, "Unknown aggregate id ('%s').", aggregateId);
+        ImmutableTreeNode treeNode = (ImmutableTreeNode) node;
+
+        return treeNode.getAllowsChildren() ? treeNode.getAggregates()[index]
+                : getLeafAggregates(treeNode)[index];
+    }
+
+    private List<Object> getUserObjects(T dataRecord) {
+        List<Function<T, Object>> providers = getProviders(hierarchy
+                .getSnapshot(), dictionaries);
+        Object[] userObjects = new Object[providers.size()];
+
+        evaluateProviders(providers, dataRecord, userObjects);
+        return Arrays.asList(userObjects);
+    }
+
+    /**
+     * Evaluates the providers for a record into the given array, which a
+     * build reuses from record to record.
+     */
+    private static <T> void evaluateProviders(
+            List<Function<T, Object>> providers, T dataRecord,
+            Object[] userObjects) {
+        for (int level = 0; level < userObjects.length; level++) {
+            userObjects[level] = providers.get(level).apply(dataRecord);
+        }
+    }
+
+    /**
+     * Returns the node object providers of the given hierarchy snapshot, those
+     * of interned nodes being wrapped to intern their results into the given
+     * dictionaries.
+     */
+    private ImmutableList<Function<T, Object>> getProviders(
+            Hierarchy.Snapshot<T> snapshot,
+            Map<Object, ValueDictionary> dictionaries) {
+        ImmutableList<Function<T, Object>> providers = snapshot.providers;
+        if (!hierarchy.hasInternedNodes()) {
+            return providers;
+        }
+
+        List<Object> nodeIds = snapshot.nodeIds;
+        ImmutableList.Builder<Function<T, Object>> interning = ImmutableList
+                .builder();
+        for (int level = 0; level < providers.size(); level++) {
+            Object nodeId = nodeIds.get(level);
+            Function<T, Object> provider = providers.get(level);
+
+            if (hierarchy.isInterned(nodeId)) {
+                ValueDictionary dictionary = getOrCreateDictionary(
+                        dictionaries, nodeId);
+                provider = provider.andThen(dictionary::intern);
+            }
+            interning.add(provider);
+        }
+        return interning.build();
+    }
+
+    private static ValueDictionary getOrCreateDictionary(
+            Map<Object, ValueDictionary> dictionaries, Object nodeId) {
+        return dictionaries.computeIfAbsent(nodeId,
+                id -> new ValueDictionary());
+    }
+
+    /**
+     * Returns the interning dictionary of the given hierarchy node. It holds
+     * the distinct user objects of that node since the tree was last built,
+     * and so gives the node's cardinality.
+     * @param nodeId The unique node identifier.
+     * @return the dictionary, or empty if the node is not interned.
+     * @see Hierarchy#setInterned(Object, boolean)
+     */
+    public Optional<ValueDictionary> getValueDictionary(Object nodeId) {
+        return Optional.ofNullable(dictionaries.get(nodeId));
     }
 
-    private void addDataRecordToRoot(T dataRecord) {
-        Iterator<Object> userObjectIterator = hierarchy
-                .getNodeObjectProviders().stream()
-                .map(s -> s.apply(dataRecord)).collect(Collectors.toList())
-                .iterator();
+    private void addDataRecord(ImmutableTreeNode root, T dataRecord,
+            List<Object> userObjects) {
+        Iterator<Object> userObjectIterator = userObjects.iterator();
 
         ImmutableTreeNode parent = root;
 
@@ -121,26 +664,160 @@ public class CollectionTreeModel<T> extends AbstractImmutableTreeModel {
             } else {
                 // Last node object is a leaf; duplicate user objects ARE
                 // allowed, but no children.
-                parent.addChild(new ImmutableTreeNode(userObject, false));
+                if (flyweightLeaves) {
+                    parent.addLeaf(userObject, dataRecord);
+                } else {
+                    parent.addChild(createLeaf(userObject, dataRecord));
+                }
             }
         }
     }
 
     private ImmutableTreeNode getNodeForObjectUnderParent(Object userObject,
             ImmutableTreeNode parent) {
-        Enumeration<ImmutableTreeNode> children = parent.children();
+        if (!parent.hasChildIndex()) {
+            parent.createChildIndex();
+        }
+        ImmutableTreeNode child = parent.getChildFor(userObject);
+
+        if (child == null) {
+            child = new ImmutableTreeNode(userObject);
+            parent.addChild(child);
+        }
+        return child;
+    }
+
+    /**
+     * Moves the children of the source node under the target node. Groups
+     * already present under the target are merged recursively; everything
+     * else is appended, so the target's children come first followed by any
+     * new ones in the source's order.
+     */
+    private void mergeChildren(ImmutableTreeNode target,
+            ImmutableTreeNode source) {
+        Enumeration<ImmutableTreeNode> children = source.children();
 
         while (children.hasMoreElements()) {
             ImmutableTreeNode child = children.nextElement();
+            ImmutableTreeNode existing = null;
 
-            if (child.getUserObject().equals(userObject)) {
-                return child;
+            if (child.getAllowsChildren()) {
+                if (!target.hasChildIndex()) {
+                    target.createChildIndex();
+                }
+                existing = target.getChildFor(child.getUserObject());
+            }
+
+            if (existing == null) {
+                target.addChild(child);
+            } else {
+                mergeChildren(existing, child);
+            }
+        }
+    }
+
+    /**
+     * Groups a split of the source records into a partial tree. Splits are
+     * built concurrently and the later split is merged into the earlier one,
+     * which keeps the first-seen child ordering of a sequential build.
+     */
+    private class PartialTreeTask extends RecursiveTask<ImmutableTreeNode> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Spliterator<T> records;
+        private final List<Function<T, Object>> providers;
+        private final BooleanSupplier cancelled;
+
+        PartialTreeTask(Spliterator<T> records,
+                List<Function<T, Object>> providers,
+                BooleanSupplier cancelled) {
+            this.records = records;
+            this.providers = providers;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        protected ImmutableTreeNode compute() {
+            Spliterator<T> prefix = null;
+            if (buildPool != null
+                    && records.estimateSize() > PARALLEL_BUILD_THRESHOLD) {
+                prefix = records.trySplit();
+            }
+
+            if (prefix == null) {
+                ImmutableTreeNode partialRoot = new ImmutableTreeNode("root");
+                Object[] userObjects = new Object[providers.size()];
+                List<Object> userObjectList = Arrays.asList(userObjects);
+
+                records.forEachRemaining(dataRecord -> {
+                    checkNotCancelled(cancelled);
+                    evaluateProviders(providers, dataRecord, userObjects);
+                    addDataRecord(partialRoot, dataRecord, userObjectList);
+                });
+                return partialRoot;
             }
+
+            PartialTreeTask suffixTask = new PartialTreeTask(records,
+                    providers, cancelled);
+            suffixTask.fork();
+            ImmutableTreeNode partialRoot = new PartialTreeTask(prefix,
+                    providers, cancelled).compute();
+            mergeChildren(partialRoot, suffixTask.join());
+            return partialRoot;
         }
+    }
+
+    /**
+     * Groups a range of the records held in a key cache into a partial tree
+     * using the cached keys, splitting the range on a parallel build.
+     */
+    private class KeyRangeTask extends RecursiveTask<ImmutableTreeNode> {
+
+        private static final long serialVersionUID = 1L;
 
-        ImmutableTreeNode newChild = new ImmutableTreeNode(userObject);
-        parent.addChild(newChild);
-        return newChild;
+        private final KeyCache<T> cache;
+        private final Object[][] columns;
+        private final int from;
+        private final int to;
+        private final BooleanSupplier cancelled;
+
+        KeyRangeTask(KeyCache<T> cache, Object[][] columns, int from, int to,
+                BooleanSupplier cancelled) {
+            this.cache = cache;
+            this.columns = columns;
+            this.from = from;
+            this.to = to;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        protected ImmutableTreeNode compute() {
+            if (buildPool == null || to - from <= PARALLEL_BUILD_THRESHOLD) {
+                ImmutableTreeNode partialRoot = new ImmutableTreeNode("root");
+                Object[] userObjects = new Object[columns.length];
+                List<Object> userObjectList = Arrays.asList(userObjects);
+
+                for (int i = from; i < to; i++) {
+                    checkNotCancelled(cancelled);
+                    for (int level = 0; level < columns.length; level++) {
+                        userObjects[level] = columns[level][i];
+                    }
+                    addDataRecord(partialRoot, cache.getRecord(i),
+                            userObjectList);
+                }
+                return partialRoot;
+            }
+
+            int mid = (from + to) >>> 1;
+            KeyRangeTask suffixTask = new KeyRangeTask(cache, columns, mid, to,
+                    cancelled);
+            suffixTask.fork();
+            ImmutableTreeNode partialRoot = new KeyRangeTask(cache, columns,
+                    from, mid, cancelled).compute();
+            mergeChildren(partialRoot, suffixTask.join());
+            return partialRoot;
+        }
     }
 
     /**
@@ -149,8 +826,708 @@ public class CollectionTreeModel<T> extends AbstractImmutableTreeModel {
      * @see Hierarchy.swapNodes
      */
     public void rebuild() {
-        build();
-        fireRootStructureChanged();
+        cancelPendingRebuild(null);
+        Map<Object, ValueDictionary> newDictionaries =
+                new ConcurrentHashMap<>();
+        installTree(createTree(getSourceRecords(), newDictionaries,
+                () -> false), newDictionaries);
+    }
+
+    private void installTree(ImmutableTreeNode newRoot,
+            Map<Object, ValueDictionary> newDictionaries) {
+        dictionaries = newDictionaries;
+
+        if (diffRebuild) {
+            reconcile(root, newRoot, true);
+            // Kept group nodes still hold their previous aggregates.
+            recomputeAggregates();
+            indexRecords();
+        } else {
+            root = newRoot;
+            indexRecords();
+            fireRootStructureChanged();
+        }
+    }
+
+    /**
+     * Brings the children of the old node into line with those of the new
+     * node. Children are matched by user object, so old nodes whose user
+     * object path is unchanged are kept, and listeners are notified of only
+     * the nodes actually inserted, removed or changed. Where the surviving
+     * children have been reordered the node's structure is reported as
+     * changed instead.
+     */
+    private void reconcile(ImmutableTreeNode oldNode,
+            ImmutableTreeNode newNode, boolean notify) {
+        List<ImmutableTreeNode> oldChildren = Collections.list(oldNode
+                .children());
+        List<ImmutableTreeNode> newChildren = Collections.list(newNode
+                .children());
+        int[] matches = matchChildren(oldChildren, newChildren);
+
+        if (!isIncreasing(matches)) {
+            reorderChildren(oldNode, oldChildren, newChildren, matches);
+
+            if (notify) {
+                fireTreeStructureChanged(this, getPathToRoot(oldNode), null,
+                        null);
+            }
+            return;
+        }
+
+        Object[] path = notify ? getPathToRoot(oldNode) : null;
+        boolean[] matched = new boolean[oldChildren.size()];
+        for (int match : matches) {
+            if (match >= 0) {
+                matched[match] = true;
+            }
+        }
+
+        List<Integer> removedIndices = new ArrayList<>();
+        for (int i = 0; i < oldChildren.size(); i++) {
+            if (!matched[i]) {
+                removedIndices.add(i);
+            }
+        }
+        for (int r = removedIndices.size() - 1; r >= 0; r--) {
+            oldNode.removeChildAt(removedIndices.get(r));
+        }
+        if (notify && !removedIndices.isEmpty()) {
+            fireTreeNodesRemoved(this, path, toIntArray(removedIndices),
+                    removedIndices.stream().map(oldChildren::get).toArray());
+        }
+
+        List<Integer> insertedIndices = new ArrayList<>();
+        for (int j = 0; j < newChildren.size(); j++) {
+            if (matches[j] < 0) {
+                oldNode.insertChild(j, newChildren.get(j));
+                insertedIndices.add(j);
+            }
+        }
+        if (notify && !insertedIndices.isEmpty()) {
+            fireTreeNodesInserted(this, path, toIntArray(insertedIndices),
+                    insertedIndices.stream().map(newChildren::get).toArray());
+        }
+
+        List<Integer> changedIndices = new ArrayList<>();
+        for (int j = 0; j < newChildren.size(); j++) {
+            if (matches[j] >= 0
+                    && adoptChanges(oldChildren.get(matches[j]),
+                            newChildren.get(j), notify)) {
+                changedIndices.add(j);
+            }
+        }
+        if (notify && !changedIndices.isEmpty()) {
+            fireTreeNodesChanged(this, path, toIntArray(changedIndices),
+                    changedIndices.stream().map(j -> oldNode.getChildAt(j))
+                            .toArray());
+        }
+    }
+
+    /**
+     * Rebuilds the children of the old node in the new order, keeping the
+     * matched old children, without notifying listeners.
+     */
+    private void reorderChildren(ImmutableTreeNode oldNode,
+            List<ImmutableTreeNode> oldChildren,
+            List<ImmutableTreeNode> newChildren, int[] matches) {
+        for (int i = oldChildren.size() - 1; i >= 0; i--) {
+            oldNode.removeChildAt(i);
+        }
+        for (int j = 0; j < newChildren.size(); j++) {
+            if (matches[j] < 0) {
+                oldNode.addChild(newChildren.get(j));
+            } else {
+                ImmutableTreeNode oldChild = oldChildren.get(matches[j]);
+                oldNode.addChild(oldChild);
+                adoptChanges(oldChild, newChildren.get(j), false);
+            }
+        }
+    }
+
+    /**
+     * Brings a kept old node into line with its new counterpart; a leaf takes
+     * on the new record and a group has its children reconciled.
+     * @return whether the old node itself changed
+     */
+    @SuppressWarnings("unchecked")
+    private boolean adoptChanges(ImmutableTreeNode oldChild,
+            ImmutableTreeNode newChild, boolean notify) {
+        if (oldChild instanceof RecordTreeNode) {
+            RecordTreeNode<Object> oldLeaf = (RecordTreeNode<Object>) oldChild;
+            Object newRecord = ((RecordTreeNode<?>) newChild).getRecord();
+
+            if (oldLeaf.getRecord() != newRecord) {
+                oldLeaf.setRecord(newRecord);
+                return true;
+            }
+        } else {
+            reconcile(oldChild, newChild, notify);
+        }
+        return false;
+    }
+
+    /**
+     * For each new child returns the index of the old child it matches, or -1.
+     * Children match when their user objects are equal and both are groups
+     * or both leaves; equal leaves are matched in order.
+     */
+    private static int[] matchChildren(List<ImmutableTreeNode> oldChildren,
+            List<ImmutableTreeNode> newChildren) {
+        int[] matches = new int[newChildren.size()];
+
+        if (oldChildren.size() == newChildren.size()) {
+            int i = 0;
+            while (i < matches.length
+                    && isMatch(oldChildren.get(i), newChildren.get(i))) {
+                matches[i] = i;
+                i++;
+            }
+            if (i == matches.length) {
+                return matches;
+            }
+        }
+
+        Map<Object, ArrayDeque<Integer>> oldIndices = new HashMap<>();
+        for (int i = 0; i < oldChildren.size(); i++) {
+            oldIndices.computeIfAbsent(oldChildren.get(i).getUserObject(),
+                    userObject -> new ArrayDeque<>()).add(i);
+        }
+        for (int j = 0; j < matches.length; j++) {
+            ImmutableTreeNode newChild = newChildren.get(j);
+            ArrayDeque<Integer> candidates = oldIndices.get(newChild
+                    .getUserObject());
+            Integer i = (candidates == null) ? null : candidates.poll();
+
+            matches[j] = (i != null && isMatch(oldChildren.get(i), newChild))
+                    ? i : -1;
+        }
+        return matches;
+    }
+
+    private static boolean isMatch(ImmutableTreeNode oldChild,
+            ImmutableTreeNode newChild) {
+        return oldChild.getAllowsChildren() == newChild.getAllowsChildren()
+                && oldChild.getUserObject().equals(newChild.getUserObject());
+    }
+
+    private static boolean isIncreasing(int[] matches) {
+        int previous = -1;
+        for (int match : matches) {
+            if (match >= 0) {
+                if (match < previous) {
+                    return false;
+                }
+                previous = match;
+            }
+        }
+        return true;
+    }
+
+    private static int[] toIntArray(List<Integer> list) {
+        return list.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * <p>
+     * Rebuild the tree model in the background. The new tree is built using
+     * the given executor while the current tree stays in place; the root is
+     * then swapped and listeners notified on the event dispatch thread, so
+     * the UI stays responsive however large the data.
+     * </p>
+     * <p>
+     * A later call, or a call to {@link #rebuild()}, supersedes a rebuild
+     * still in progress: its future is cancelled and its build stops. The
+     * returned future may also be cancelled directly.
+     * </p>
+     * <p>
+     * Should the records not be gathered, the executor reject the build or
+     * the build fail, the returned future completes exceptionally and the
+     * current tree stays in place.
+     * </p>
+     * @param executor the executor to build the tree with
+     * @return a future completed, on the event dispatch thread, once the new
+     *         tree is in place
+     */
+    public CompletableFuture<Void> rebuildAsync(Executor executor) {
+        CompletableFuture<Void> rebuild = new CompletableFuture<>();
+        cancelPendingRebuild(rebuild);
+
+        try {
+            // Gathered here, as a model built from a stream reads its leaves
+            // and the caller may hold the source collection's lock only
+            // meanwhile.
+            Spliterator<T> records = getSourceRecords();
+            if (cacheKeys && keyCache == null) {
+                keyCache = new KeyCache<>(srcData);
+            }
+
+            executor.execute(() -> {
+                try {
+                    Map<Object, ValueDictionary> newDictionaries =
+                            new ConcurrentHashMap<>();
+                    ImmutableTreeNode newRoot = createTree(records,
+                            newDictionaries, rebuild::isCancelled);
+
+                    SwingUtilities.invokeLater(() -> {
+                        if (rebuild.isCancelled()) {
+                            return;
+                        }
+                        pendingRebuild.compareAndSet(rebuild, null);
+                        try {
+                            installTree(newRoot, newDictionaries);
+                            rebuild.complete(null);
+                        } catch (RuntimeException | Error e) {
+                            rebuild.completeExceptionally(e);
+                        }
+                    });
+                } catch (CancellationException e) {
+                    pendingRebuild.compareAndSet(rebuild, null);
+                    rebuild.cancel(false);
+                } catch (RuntimeException | Error e) {
+                    failPendingRebuild(rebuild, e);
+                }
+            });
+        } catch (RuntimeException | Error e) {
+            failPendingRebuild(rebuild, e);
+        }
+        return rebuild;
+    }
+
+    private void failPendingRebuild(CompletableFuture<Void> rebuild,
+            Throwable failure) {
+        pendingRebuild.compareAndSet(rebuild, null);
+        rebuild.completeExceptionally(failure);
+    }
+
+    private void cancelPendingRebuild(CompletableFuture<Void> replacement) {
+        CompletableFuture<Void> pending = pendingRebuild.getAndSet(replacement);
+
+        if (pending != null) {
+            pending.cancel(false);
+        }
+    }
+
+    /**
+     * <p>
+     * Adds nodes for the given records, creating any group nodes they need.
+     * Only the affected paths are touched and listeners are notified of just
+     * the inserted nodes, merged into one event per parent as in a
+     * {@link #beginBatch() batch}. The records are expected to have been added
+     * to the source collection too, so that a later {@link #rebuild()} agrees.
+     * </p>
+     * @param records the records to add
+     */
+    public void addRecords(Collection<? extends T> records) {
+        invalidateKeyCache();
+        boolean batched = beginBatchIfListened();
+        try {
+            records.forEach(dataRecord -> insertRecord(dataRecord,
+                    getUserObjects(dataRecord)));
+        } finally {
+            if (batched) {
+                endBatch();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Removes the leaf nodes of the given records, pruning any group nodes
+     * left empty. Only the affected paths are touched and listeners are
+     * notified of just the removed nodes, merged into one event per parent as
+     * in a {@link #beginBatch() batch}. Records are matched by identity,
+     * falling back to equals, and records not in the tree are ignored.
+     * </p>
+     * <p>
+     * The leaves are looked up through the record index where there is one;
+     * otherwise the leaves of each group touched are scanned once, however
+     * many of them are removed. Each group then has its leaves removed from
+     * the last, so that finding them costs nothing further.
+     * </p>
+     * @param records the records to remove
+     */
+    public void removeRecords(Collection<? extends T> records) {
+        checkRecordsRetained();
+        invalidateKeyCache();
+        Map<ImmutableTreeNode, LeafLookup> lookups = new IdentityHashMap<>();
+        List<LeafLookup> groups = new ArrayList<>();
+
+        for (T dataRecord : records) {
+            claimLeaf(dataRecord, lookups, groups);
+        }
+
+        boolean batched = beginBatchIfListened();
+        try {
+            for (LeafLookup lookup : groups) {
+                BitSet claimed = lookup.claimed;
+                for (int i = claimed.length() - 1; i >= 0; i = claimed
+                        .previousSetBit(i - 1)) {
+                    removeLeaf(lookup.parent, i);
+                }
+            }
+        } finally {
+            if (batched) {
+                endBatch();
+            }
+        }
+    }
+
+    /**
+     * Starts a batch if anyone is listening, as merging the events of a bulk
+     * change is wasted work otherwise.
+     * @return whether a batch was started
+     */
+    private boolean beginBatchIfListened() {
+        if (listenerList.getListenerCount() == 0) {
+            return false;
+        }
+        beginBatch();
+        return true;
+    }
+
+    /**
+     * Finds the leaf of the given record not yet claimed by this bulk
+     * removal, if any, and claims it.
+     */
+    private void claimLeaf(T dataRecord,
+            Map<ImmutableTreeNode, LeafLookup> lookups,
+            List<LeafLookup> groups) {
+        ImmutableTreeNode parent = null;
+        int index = -1;
+
+        if (recordIndex != null) {
+            RecordTreeNode<T> leaf = recordIndex.get(dataRecord);
+            if (leaf != null) {
+                parent = (ImmutableTreeNode) leaf.getParent();
+                index = parent.getIndex(leaf);
+            }
+        }
+        if (parent == null) {
+            parent = getGroupFor(getUserObjects(dataRecord));
+            if (parent == null) {
+                return;
+            }
+        }
+
+        LeafLookup lookup = lookups.get(parent);
+        if (lookup == null) {
+            lookup = new LeafLookup(parent);
+            lookups.put(parent, lookup);
+            groups.add(lookup);
+        }
+        if (index < 0 || lookup.claimed.get(index)) {
+            index = lookup.find(dataRecord);
+        }
+        if (index >= 0) {
+            lookup.claimed.set(index);
+        }
+    }
+
+    /**
+     * The leaves of one group claimed by a bulk removal, with the group's
+     * leaves hashed by record on first use.
+     */
+    private static class LeafLookup {
+        final ImmutableTreeNode parent;
+        final BitSet claimed = new BitSet();
+        private Map<Object, ArrayDeque<Integer>> byIdentity;
+        private Map<Object, ArrayDeque<Integer>> byEquality;
+
+        LeafLookup(ImmutableTreeNode parent) {
+            this.parent = parent;
+        }
+
+        /**
+         * Returns the index of the first unclaimed leaf of the record,
+         * matched by identity and falling back to equals, or -1.
+         */
+        int find(Object dataRecord) {
+            if (byIdentity == null) {
+                byIdentity = new IdentityHashMap<>();
+                byEquality = new HashMap<>();
+                for (int i = 0; i < parent.getChildCount(); i++) {
+                    Object childRecord = ((RecordTreeNode<?>) parent
+                            .getChildAt(i)).getRecord();
+                    byIdentity.computeIfAbsent(childRecord,
+                            r -> new ArrayDeque<>()).add(i);
+                    byEquality.computeIfAbsent(childRecord,
+                            r -> new ArrayDeque<>()).add(i);
+                }
+            }
+            int index = firstUnclaimed(byIdentity.get(dataRecord));
+            return (index >= 0) ? index : firstUnclaimed(byEquality.get(
+                    dataRecord));
+        }
+
+        private int firstUnclaimed(ArrayDeque<Integer> indices) {
+            if (indices == null) {
+                return -1;
+            }
+            while (!indices.isEmpty() && claimed.get(indices.peek())) {
+                indices.poll();
+            }
+            return indices.isEmpty() ? -1 : indices.peek();
+        }
+    }
+
+    /**
+     * <p>
+     * Replaces the leaf node of a record with one for its updated version. If
+     * the update leaves the record under the same group nodes the leaf is
+     * replaced in place and listeners are notified of a changed node;
+     * otherwise it is moved as if removed and added.
+     * </p>
+     * @param oldRecord the record as it is currently represented in the tree
+     * @param newRecord the updated record
+     */
+    public void updateRecord(T oldRecord, T newRecord) {
+        checkRecordsRetained();
+        invalidateKeyCache();
+        List<Object> oldUserObjects = getUserObjects(oldRecord);
+        List<Object> newUserObjects = getUserObjects(newRecord);
+        int leafLevel = newUserObjects.size() - 1;
+        ImmutableTreeNode oldLeaf = getLeafFor(oldRecord, oldUserObjects);
+
+        if (oldLeaf != null
+                && oldUserObjects.subList(0, leafLevel).equals(
+                        newUserObjects.subList(0, leafLevel))
+                && keepsPosition(oldUserObjects.get(leafLevel),
+                        newUserObjects.get(leafLevel), leafLevel)) {
+            ImmutableTreeNode parent = (ImmutableTreeNode) oldLeaf.getParent();
+            int index = parent.getIndex(oldLeaf);
+            ImmutableTreeNode newLeaf = createLeaf(newUserObjects.get(
+                    leafLevel), newRecord);
+
+            unindexRecord(oldLeaf);
+            indexRecord(newLeaf);
+            parent.removeChildAt(index);
+            if (!aggregates.isEmpty()) {
+                removeFromAggregates(parent, getLeafAggregates(oldLeaf));
+            }
+            parent.insertChild(index, newLeaf);
+            fireTreeNodesChanged(this, getPathToRoot(parent),
+                    new int[] { index }, new Object[] { newLeaf });
+
+            if (!aggregates.isEmpty()) {
+                addToAggregates(parent, getLeafAggregates(newLeaf));
+                fireAggregatesChanged(parent);
+            }
+        } else {
+            removeRecord(oldRecord, oldUserObjects);
+            insertRecord(newRecord, newUserObjects);
+        }
+    }
+
+    private void checkRecordsRetained() {
+        checkState(retainRecords, "Records were not retained.");
+    }
+
+    /**
+     * @return whether the leaves hold their records
+     * @see Builder#retainRecords(boolean)
+     */
+    boolean isRetainingRecords() {
+        return retainRecords;
+    }
+
+    private boolean keepsPosition(Object oldUserObject, Object newUserObject,
+            int level) {
+        Comparator<Object> comparator = hierarchy.getComparator(hierarchy
+                .getNodeIds().get(level));
+        return comparator == null
+                || comparator.compare(oldUserObject, newUserObject) == 0;
+    }
+
+    private void insertRecord(T dataRecord, List<Object> userObjects) {
+        if (userObjects.isEmpty()) {
+            return;
+        }
+        int leafLevel = userObjects.size() - 1;
+        int level = 0;
+        ImmutableTreeNode parent = root;
+
+        while (level < leafLevel) {
+            if (!parent.hasChildIndex()) {
+                parent.createChildIndex();
+            }
+            ImmutableTreeNode child = parent.getChildFor(userObjects
+                    .get(level));
+
+            if (child == null) {
+                break;
+            }
+            parent = child;
+            level++;
+        }
+
+        // The missing part of the path is built detached so that attaching
+        // it takes a single event.
+        ImmutableTreeNode leaf = createLeaf(userObjects.get(leafLevel),
+                dataRecord);
+        indexRecord(leaf);
+        ImmutableTreeNode inserted = leaf;
+        for (int i = leafLevel - 1; i >= level; i--) {
+            ImmutableTreeNode group = new ImmutableTreeNode(userObjects.get(i));
+            group.addChild(inserted);
+            inserted = group;
+        }
+        int index = getInsertionIndex(parent, inserted.getUserObject(),
+                level);
+        parent.insertChild(index, inserted);
+
+        fireTreeNodesInserted(this, getPathToRoot(parent),
+                new int[] { index }, new Object[] { inserted });
+
+        if (!aggregates.isEmpty()) {
+            computeAggregates(inserted);
+            addToAggregates(parent, getLeafAggregates(leaf));
+            fireAggregatesChanged(parent);
+        }
+    }
+
+    /**
+     * Creates a leaf to be inserted; a {@link LeafHandle}, which its parent
+     * stores as a flyweight, where the model uses flyweight leaves, and a
+     * plain node holding only the user object where records are not
+     * retained.
+     */
+    private ImmutableTreeNode createLeaf(Object userObject, T dataRecord) {
+        if (!retainRecords) {
+            return new ImmutableTreeNode(userObject, false);
+        }
+        return flyweightLeaves ? new LeafHandle<>(userObject, dataRecord)
+                : new RecordTreeNode<>(userObject, dataRecord);
+    }
+
+    /**
+     * Returns where a child with the given user object belongs under the
+     * parent: after any equal children where the level has a comparator and
+     * last otherwise.
+     */
+    private int getInsertionIndex(ImmutableTreeNode parent,
+            Object userObject, int level) {
+        Comparator<Object> comparator = hierarchy.getComparator(hierarchy
+                .getNodeIds().get(level));
+        int low = 0;
+        int high = parent.getChildCount();
+        if (comparator == null) {
+            return high;
+        }
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            Object midUserObject = ((ImmutableTreeNode) parent.getChildAt(mid))
+                    .getUserObject();
+
+            if (comparator.compare(midUserObject, userObject) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void removeRecord(T dataRecord, List<Object> userObjects) {
+        ImmutableTreeNode leaf = getLeafFor(dataRecord, userObjects);
+        if (leaf == null) {
+            return;
+        }
+        ImmutableTreeNode parent = (ImmutableTreeNode) leaf.getParent();
+        removeLeaf(parent, parent.getIndex(leaf));
+    }
+
+    /**
+     * Removes the leaf at the given index of a group, pruning any group nodes
+     * left empty.
+     */
+    private void removeLeaf(ImmutableTreeNode parent, int index) {
+        ImmutableTreeNode removed = (ImmutableTreeNode) parent.getChildAt(
+                index);
+        double[] leafValues = aggregates.isEmpty() ? null
+                : getLeafAggregates(removed);
+        unindexRecord(removed);
+
+        while (parent != root && parent.getChildCount() == 1) {
+            removed = parent;
+            parent = (ImmutableTreeNode) parent.getParent();
+            index = parent.getIndex(removed);
+        }
+
+        Object[] path = getPathToRoot(parent);
+        parent.removeChildAt(index);
+
+        fireTreeNodesRemoved(this, path, new int[] { index },
+                new Object[] { removed });
+
+        if (leafValues != null) {
+            removeFromAggregates(parent, leafValues);
+            fireAggregatesChanged(parent);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void indexRecord(ImmutableTreeNode leaf) {
+        if (recordIndex != null) {
+            RecordTreeNode<T> recordLeaf = (RecordTreeNode<T>) leaf;
+            recordIndex.putIfAbsent(recordLeaf.getRecord(), recordLeaf);
+        }
+    }
+
+    private void unindexRecord(ImmutableTreeNode leaf) {
+        if (recordIndex != null) {
+            recordIndex.remove(((RecordTreeNode<?>) leaf).getRecord(), leaf);
+        }
+    }
+
+    private ImmutableTreeNode getLeafFor(T dataRecord,
+            List<Object> userObjects) {
+        if (recordIndex != null) {
+            ImmutableTreeNode leaf = recordIndex.get(dataRecord);
+            if (leaf != null) {
+                return leaf;
+            }
+        }
+        ImmutableTreeNode parent = getGroupFor(userObjects);
+        if (parent == null) {
+            return null;
+        }
+
+        ImmutableTreeNode match = null;
+        Enumeration<ImmutableTreeNode> children = parent.children();
+
+        while (children.hasMoreElements()) {
+            ImmutableTreeNode child = children.nextElement();
+            Object childRecord = ((RecordTreeNode<?>) child).getRecord();
+
+            if (childRecord == dataRecord) {
+                return child;
+            } else if (match == null && childRecord.equals(dataRecord)) {
+                match = child;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Returns the group node which holds, or would hold, the leaf with the
+     * given user objects, or null if the path to it does not exist.
+     */
+    private ImmutableTreeNode getGroupFor(List<Object> userObjects) {
+        ImmutableTreeNode parent = root;
+
+        for (int level = 0; level < userObjects.size() - 1; level++) {
+            if (!parent.hasChildIndex()) {
+                parent.createChildIndex();
+            }
+            parent = parent.getChildFor(userObjects.get(level));
+
+            if (parent == null) {
+                return null;
+            }
+        }
+        return parent;
     }
 
     private void fireRootStructureChanged() {
@@ -166,6 +1543,30 @@ public class CollectionTreeModel<T> extends AbstractImmutableTreeModel {
                 children);
     }
 
+    /**
+     * Returns a read-only snapshot of the current tree held in compact,
+     * array-backed storage. The snapshot does not follow later changes to
+     * this model.
+     * @return the compact snapshot
+     * @see CompactTreeModel
+     */
+    public CompactTreeModel toCompactModel() {
+        return new CompactTreeModel(root);
+    }
+
+    /**
+     * Writes the current tree to a compact binary snapshot file, which
+     * {@link CompactTreeModel#load(Path)} maps back in as a read-only model.
+     * Only the user objects of the nodes are written, not the records, and
+     * they must be strings or boxed primitives.
+     * @param file the file to write, which is replaced if it exists
+     * @throws IOException if the file cannot be written
+     * @see CompactTreeModel#write(Path)
+     */
+    public void writeSnapshot(Path file) throws IOException {
+        toCompactModel().write(file);
+    }
+
     /**
      * Get the hierarchy specification for querying nodes, modification,
      * swapping nodes etc.
@@ -182,11 +1583,72 @@ public class CollectionTreeModel<T> extends AbstractImmutableTreeModel {
     public static class Builder<T> {
 
         private final Collection<T> srcData;
+        private final Spliterator<T> records;
         private final Hierarchy<T> hierarchy;
+        private boolean retainRecords = true;
+        private boolean retainChildIndex = true;
+        private ForkJoinPool buildPool;
+        private boolean lazy;
+        private boolean cacheKeys;
+        private boolean internValues;
+        private boolean diffRebuild;
+        private final Map<Object, Aggregate<? super T>> aggregates =
+                new LinkedHashMap<>();
+        private boolean indexRecords;
+        private boolean flyweightLeaves;
 
         public Builder(Collection<T> srcData) {
-            hierarchy = new Hierarchy<>();
-            this.srcData = srcData;
+            this(srcData, new Hierarchy<>());
+        }
+
+        private Builder(Collection<T> srcData, Hierarchy<T> hierarchy) {
+            this.srcData = checkNotNull(srcData);
+            this.records = null;
+            this.hierarchy = hierarchy;
+        }
+
+        private Builder(Spliterator<T> records) {
+            this.srcData = null;
+            this.records = checkNotNull(records);
+            this.hierarchy = new Hierarchy<>();
+        }
+
+        /**
+         * <p>
+         * Starts a model which groups the given records in a single pass as
+         * they arrive, without them first being collected. The model keeps
+         * no source collection; a later rebuild regroups the records held by
+         * its leaves, so use {@link #retainRecords(boolean)} to drop those
+         * too where the model will only be viewed.
+         * </p>
+         * <p>
+         * Not combined with {@link #lazy()} or {@link #cacheKeys()}, which
+         * need the source collection.
+         * </p>
+         * @param records the records, consumed by the build
+         * @return a builder
+         */
+        public static <T> Builder<T> fromSpliterator(Spliterator<T> records) {
+            return new Builder<>(records);
+        }
+
+        /**
+         * @param records the records, consumed by the build
+         * @return a builder
+         * @see #fromSpliterator(Spliterator)
+         */
+        public static <T> Builder<T> fromIterator(Iterator<T> records) {
+            return new Builder<>(Spliterators.spliteratorUnknownSize(records,
+                    Spliterator.ORDERED));
+        }
+
+        /**
+         * @param records the records, consumed by the build
+         * @return a builder
+         * @see #fromSpliterator(Spliterator)
+         */
+        public static <T> Builder<T> fromStream(Stream<T> records) {
+            return new Builder<>(records.spliterator());
         }
 
         public Builder<T> addNode(Function<T, Object> provider) {
@@ -199,7 +1661,232 @@ public class CollectionTreeModel<T> extends AbstractImmutableTreeModel {
             return this;
         }
 
+        /**
+         * Adds a node whose siblings are ordered by the given comparator.
+         * @see Hierarchy#addNode(Function, Object, Comparator)
+         */
+        public <K> Builder<T> addNode(Function<T, K> provider, Object nodeId,
+                Comparator<? super K> comparator) {
+            hierarchy.addNode(provider, nodeId, comparator);
+            return this;
+        }
+
+        /**
+         * Adds a node whose user objects are computed from a cheap key of each
+         * record and memoized in a bounded cache.
+         * @see Hierarchy#addNode(Function, Function, Object, long)
+         */
+        public <K> Builder<T> addNode(Function<T, K> keyExtractor,
+                Function<? super K, ?> valueFunction, Object nodeId,
+                long maximumCacheSize) {
+            hierarchy.addNode(keyExtractor, valueFunction, nodeId,
+                    maximumCacheSize);
+            return this;
+        }
+
+        /**
+         * Group nodes are given a hash index from user object to child while
+         * the tree is built, so placing a record costs O(depth) rather than
+         * O(depth x fanout). By default the indices are kept; passing false
+         * drops them once the build completes to save memory, an index being
+         * recreated only for a group that is looked up again.
+         * @param retain whether to keep the child indices after building
+         * @return this builder
+         */
+        public Builder<T> retainChildIndex(boolean retain) {
+            this.retainChildIndex = retain;
+            return this;
+        }
+
+        /**
+         * Builds, and rebuilds, the tree on the given pool. The source
+         * collection is split, the splits are grouped into partial trees
+         * concurrently and then merged under the root. The resulting tree is
+         * identical to that of a sequential build, including the first-seen
+         * ordering of children, provided the providers are thread safe.
+         * @param pool the pool to build on
+         * @return this builder
+         */
+        public Builder<T> parallel(ForkJoinPool pool) {
+            this.buildPool = checkNotNull(pool);
+            return this;
+        }
+
+        /**
+         * Only the first level of the tree is grouped when it is built, and
+         * rebuilt. The children of any other group node are grouped from its
+         * slice of the source records the first time they are accessed,
+         * which is when a JTree first expands the node, so the cost of
+         * building is in proportion to what is actually viewed. Lazy builds
+         * are not combined with {@link #parallel(ForkJoinPool)}.
+         * @return this builder
+         */
+        public Builder<T> lazy() {
+            this.lazy = true;
+            return this;
+        }
+
+        /**
+         * The results of every node object provider are cached, one column
+         * per hierarchy node id, the first time they are needed. Rebuilding
+         * after the hierarchy nodes have been swapped or reordered then
+         * regroups the cached keys without invoking any provider. The cache
+         * holds a snapshot of the source collection and must be invalidated
+         * when the records change.
+         * @return this builder
+         * @see CollectionTreeModel#invalidateKeyCache()
+         */
+        public Builder<T> cacheKeys() {
+            this.cacheKeys = true;
+            return this;
+        }
+
+        /**
+         * Groups the records straight into compact, array-backed storage,
+         * without first building the tree out of node objects, so the peak
+         * heap is little more than that of the finished compact tree. Suited
+         * to very large, read-only trees. The tree is the same as
+         * {@link #build()} would give, but the options which only concern a
+         * live model, such as {@link #lazy()}, {@link #cacheKeys()} or a
+         * parallel build, are ignored.
+         * @return a compact model of the tree
+         * @see CompactTreeModel
+         */
+        public CompactTreeModel buildCompact() {
+            Hierarchy.Snapshot<T> snapshot = hierarchy.getSnapshot();
+            List<Function<T, Object>> providers = new ArrayList<>();
+            List<Comparator<Object>> comparators = new ArrayList<>();
+
+            for (int level = 0; level < snapshot.nodeIds.size(); level++) {
+                Object nodeId = snapshot.nodeIds.get(level);
+                Function<T, Object> provider = snapshot.providers.get(level);
+
+                if (internValues || hierarchy.isInterned(nodeId)) {
+                    provider = provider.andThen(new ValueDictionary()::intern);
+                }
+                providers.add(provider);
+                comparators.add(hierarchy.getComparator(nodeId));
+            }
+            return CompactTreeModel.group((srcData == null) ? records
+                    : srcData.spliterator(), providers, comparators);
+        }
+
+        /**
+         * Interns the user objects of every node added to the hierarchy, so
+         * that equal user objects on a level share one canonical instance.
+         * @return this builder
+         * @see Hierarchy#setInterned(Object, boolean)
+         */
+        public Builder<T> internValues() {
+            this.internValues = true;
+            return this;
+        }
+
+        /**
+         * Rebuilds, whether by {@link CollectionTreeModel#rebuild()} or
+         * {@link CollectionTreeModel#rebuildAsync(Executor)}, compare the
+         * new tree with the current one by user object path. Unchanged nodes
+         * are kept and listeners are told of only the nodes inserted, removed
+         * or changed, so a JTree's expansion and selection survive a data
+         * refresh. Not combined with {@link #lazy()}, as comparing would
+         * load every node.
+         * @return this builder
+         */
+        public Builder<T> diffRebuild() {
+            this.diffRebuild = true;
+            return this;
+        }
+
+        /**
+         * Registers an aggregate to be computed for every group node as the
+         * tree is built and kept current as records are added, removed and
+         * updated.
+         * @param aggregateId the unique id to read the aggregate by
+         * @param aggregate the aggregate
+         * @return this builder
+         * @exception IllegalArgumentException if the id is already in use.
+         * @see CollectionTreeModel#getAggregate(Object, Object)
+         */
+        public Builder<T> aggregate(Object aggregateId,
+                Aggregate<? super T> aggregate) {
+            checkNotNull(aggregateId);
+            checkArgument(!aggregates.containsKey(aggregateId),
+                    "Duplicate aggregate id ('%s').", aggregateId);
+            aggregates.put(aggregateId, checkNotNull(aggregate));
+            return this;
+        }
+
+        /**
+         * Keeps an identity map from each source record to its leaf, so that
+         * {@link CollectionTreeModel#getPathFor(Object)} finds a record's
+         * path, and records are removed or updated, in O(depth) rather than
+         * by searching the tree. Not combined with {@link #lazy()}.
+         * @return this builder
+         */
+        public Builder<T> indexRecords() {
+            this.indexRecords = true;
+            return this;
+        }
+
+        /**
+         * <p>
+         * Stores the leaves of each bottom group as arrays of their user
+         * objects and records instead of as one node object each, which
+         * roughly halves the heap used by a tree of many leaves. A leaf node
+         * is created each time one is asked for, as a lightweight handle;
+         * handles onto the same leaf are equal but not identical, so leaves
+         * must be compared with equals. Not combined with {@link #lazy()}.
+         * </p>
+         * @return this builder
+         */
+        public Builder<T> flyweightLeaves() {
+            this.flyweightLeaves = true;
+            return this;
+        }
+
+        /**
+         * Whether each leaf keeps the record it was created from. By default
+         * records are kept; passing false keeps only the leaves' user objects,
+         * so the tree holds no reference to the records. The model can then
+         * be viewed and records added, but records cannot be removed or
+         * updated, nor a model built from a stream rebuilt. Not combined
+         * with aggregates, {@link #indexRecords()} or
+         * {@link #flyweightLeaves()}.
+         * @param retain whether leaves keep their records
+         * @return this builder
+         */
+        public Builder<T> retainRecords(boolean retain) {
+            this.retainRecords = retain;
+            return this;
+        }
+
         public CollectionTreeModel<T> build() {
+            if (internValues) {
+                hierarchy.getNodeIds().forEach(
+                        nodeId -> hierarchy.setInterned(nodeId, true));
+            }
+            checkState(!lazy || buildPool == null,
+                    "A lazy model cannot also be built in parallel.");
+            checkState(!lazy || !cacheKeys,
+                    "A lazy model cannot also cache keys.");
+            checkState(!lazy || !diffRebuild,
+                    "A lazy model cannot also diff rebuilds.");
+            checkState(!lazy || aggregates.isEmpty(),
+                    "A lazy model cannot also aggregate.");
+            checkState(!lazy || !indexRecords,
+                    "A lazy model cannot also index records.");
+            checkState(!lazy || !flyweightLeaves,
+                    "A lazy model cannot also use flyweight leaves.");
+            checkState(!lazy || srcData != null,
+                    "A lazy model cannot be built from a stream.");
+            checkState(!cacheKeys || srcData != null,
+                    "A model built from a stream cannot cache keys.");
+            checkState(retainRecords || aggregates.isEmpty(),
+                    "Records must be retained to aggregate.");
+            checkState(retainRecords || !indexRecords,
+                    "Records must be retained to index them.");
+            checkState(retainRecords || !flyweightLeaves,
+                    "Records must be retained by flyweight leaves.");
             return new CollectionTreeModel<>(this);
         }
     }
@@ -0,0 +1,462 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Function;
+
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreeNode;
+
+/**
+ * <p>
+ * A read-only {@link TreeModel} holding a tree in compact, array-backed
+ * storage. Nodes are numbered breadth first, so the children of a node occupy
+ * a contiguous range, and the tree is held in parallel arrays of parent, first
+ * child and child count indices plus an array of user objects. This avoids
+ * the per-node object overhead of {@link ImmutableTreeNode} on very large
+ * trees.
+ * </p>
+ * <p>
+ * The nodes handed out by the model are lightweight {@link Node} handles,
+ * created only on request, which simply wrap a node's index. Handles for the
+ * same node are equal so they can be used in TreePaths.
+ * </p>
+ * <p>
+ * A CompactTreeModel is a snapshot; it is created from a built
+ * {@link CollectionTreeModel}, or grouped straight from the records by
+ * {@link CollectionTreeModel.Builder#buildCompact()}, and never changes. It
+ * can be written to a file and loaded back through a memory mapping, so that
+ * a large tree can be shown at startup without rebuilding it or reading the
+ * whole file.
+ * </p>
+ * @see CollectionTreeModel#toCompactModel()
+ * @see CollectionTreeModel.Builder#buildCompact()
+ */
+public class CompactTreeModel extends
+        AbstractImmutableTreeModel<CompactTreeModel.Node> {
+
+    private final Storage storage;
+
+    CompactTreeModel(ImmutableTreeNode treeRoot) {
+        this(new ArrayStorage(treeRoot));
+    }
+
+    private CompactTreeModel(Storage storage) {
+        this.storage = storage;
+        root = new Node(0);
+    }
+
+    /**
+     * Groups the records level by level straight into breadth first storage,
+     * as a {@link CollectionTreeModel} would group them, without creating a
+     * node object for any group or leaf. Only the records, one array of their
+     * positions and the user objects of the finished tree are held at once.
+     * @param records the records to group
+     * @param providers the user object provider of each level, the last
+     *        giving the leaves
+     * @param comparators the comparator of each level, null where the level
+     *        is in first-seen order
+     * @return a model of the grouped tree
+     */
+    static <T> CompactTreeModel group(Spliterator<T> records,
+            List<Function<T, Object>> providers,
+            List<Comparator<Object>> comparators) {
+        List<T> recordList = new ArrayList<>();
+        records.forEachRemaining(recordList::add);
+        int n = recordList.size();
+        int levels = providers.size();
+
+        List<Object> userObjects = new ArrayList<>();
+        int[] childCounts = new int[16];
+        userObjects.add("root");
+
+        // The groups of the current level, in breadth first order, each
+        // spanning a run of the record positions.
+        int[] positions = new int[n];
+        for (int i = 0; i < n; i++) {
+            positions[i] = i;
+        }
+        int[] groupEnds = { (levels == 0) ? 0 : n };
+        int groupCount = 1;
+        // The number of the first group of the current level.
+        int levelStart = 0;
+
+        for (int level = 0; level < levels; level++) {
+            Function<T, Object> provider = providers.get(level);
+            Comparator<Object> comparator = comparators.get(level);
+            boolean leaves = level == levels - 1;
+            int[] nextPositions = leaves ? positions : new int[n];
+            int[] nextGroupEnds = new int[16];
+            int nextGroupCount = 0;
+            int start = 0;
+
+            for (int g = 0; g < groupCount; g++) {
+                int end = groupEnds[g];
+                int childCount;
+
+                if (leaves) {
+                    // Duplicate user objects are allowed, so every record
+                    // is a leaf of its own.
+                    List<Object> leafObjects = new ArrayList<>(end - start);
+                    for (int i = start; i < end; i++) {
+                        leafObjects.add(provider.apply(recordList.get(
+                                positions[i])));
+                    }
+                    if (comparator != null) {
+                        leafObjects.sort(comparator);
+                    }
+                    userObjects.addAll(leafObjects);
+                    childCount = leafObjects.size();
+                } else {
+                    // Counts the records under each user object in first-seen
+                    // order, then places each run of positions after the
+                    // runs before it.
+                    Object[] keys = new Object[end - start];
+                    Map<Object, int[]> counts = new LinkedHashMap<>();
+                    for (int i = start; i < end; i++) {
+                        keys[i - start] = provider.apply(recordList.get(
+                                positions[i]));
+                        counts.computeIfAbsent(keys[i - start],
+                                k -> new int[1])[0]++;
+                    }
+                    List<Object> groups = new ArrayList<>(counts.keySet());
+                    if (comparator != null) {
+                        groups.sort(comparator);
+                    }
+
+                    int offset = start;
+                    for (Object group : groups) {
+                        int[] count = counts.get(group);
+                        int groupStart = offset;
+                        offset += count[0];
+                        count[0] = groupStart;
+
+                        userObjects.add(group);
+                        nextGroupEnds = grow(nextGroupEnds, nextGroupCount);
+                        nextGroupEnds[nextGroupCount++] = offset;
+                    }
+                    for (int i = start; i < end; i++) {
+                        nextPositions[counts.get(keys[i - start])[0]++] =
+                                positions[i];
+                    }
+                    childCount = groups.size();
+                }
+
+                childCounts = grow(childCounts, levelStart + g);
+                childCounts[levelStart + g] = childCount;
+                start = end;
+            }
+            levelStart += groupCount;
+            positions = nextPositions;
+            groupEnds = nextGroupEnds;
+            groupCount = nextGroupCount;
+        }
+
+        return new CompactTreeModel(new ArrayStorage(userObjects.toArray(),
+                Arrays.copyOf(childCounts, userObjects.size())));
+    }
+
+    private static int[] grow(int[] values, int index) {
+        return (index < values.length) ? values : Arrays.copyOf(values,
+                Math.max(index + 1, values.length * 2));
+    }
+
+    /**
+     * Writes the tree to the given file in a compact binary format which
+     * {@link #load(Path)} maps back in. The file holds a structure section of
+     * four ints per node followed by a dictionary of the distinct user
+     * objects, so user objects repeated across the tree are stored once.
+     * User objects must be strings, Integers, Longs, Doubles or Booleans;
+     * other objects are not written through Java serialization, as loading
+     * them back would be unsafe.
+     * @param file the file to write, which is replaced if it exists
+     * @throws IOException if the file cannot be written
+     * @throws IllegalArgumentException if a user object is of any other
+     *         type
+     * @see TreeSnapshotFile
+     */
+    public void write(Path file) throws IOException {
+        TreeSnapshotFile.write(storage, checkNotNull(file));
+    }
+
+    /**
+     * Loads a tree written by {@link #write(Path)}. The file is memory-mapped
+     * rather than read, and nothing is decoded up front: the structure is
+     * read from the mapping as nodes are visited and each user object is
+     * decoded the first time it is asked for. Only a single pass over the
+     * indices of the structure, checking that each lies within the section
+     * it points into, is made as the file is loaded.
+     * <p>
+     * User objects are only ever decoded as strings and boxed primitives;
+     * the file format has no Java serialization, so a snapshot from an
+     * untrusted source cannot instantiate arbitrary classes. A value whose
+     * type tag or length is corrupt is reported by an IllegalStateException
+     * when its node is first visited.
+     * </p>
+     * @param file the file to load
+     * @return a model onto the mapped file
+     * @throws IOException if the file cannot be mapped, is not a snapshot or
+     *         is truncated, or its structure is corrupt
+     */
+    public static CompactTreeModel load(Path file) throws IOException {
+        return new CompactTreeModel(TreeSnapshotFile.map(checkNotNull(file)));
+    }
+
+    /**
+     * @return the number of nodes in the tree, including the root
+     */
+    public int getNodeCount() {
+        return storage.size();
+    }
+
+    private static int indexOf(Object node) {
+        return ((Node) node).index;
+    }
+
+    @Override
+    public Object getChild(Object parent, int index) {
+        return getChildAt(indexOf(parent), index);
+    }
+
+    @Override
+    public int getChildCount(Object parent) {
+        return storage.getChildCount(indexOf(parent));
+    }
+
+    @Override
+    public int getIndexOfChild(Object parent, Object child) {
+        return getIndex(indexOf(parent), indexOf(child));
+    }
+
+    @Override
+    public boolean isLeaf(Object node) {
+        return storage.getChildCount(indexOf(node)) == 0;
+    }
+
+    private Node getChildAt(int parent, int childIndex) {
+        if (childIndex < 0 || childIndex >= storage.getChildCount(parent)) {
+            throw new ArrayIndexOutOfBoundsException(childIndex);
+        }
+        return new Node(storage.getFirstChild(parent) + childIndex);
+    }
+
+    private int getIndex(int parent, int child) {
+        return (storage.getParent(child) == parent)
+                ? child - storage.getFirstChild(parent) : -1;
+    }
+
+    /**
+     * Where the nodes of the tree are held, by breadth first index. The
+     * parent of the root is -1.
+     */
+    interface Storage {
+
+        int size();
+
+        int getParent(int node);
+
+        int getFirstChild(int node);
+
+        int getChildCount(int node);
+
+        Object getUserObject(int node);
+    }
+
+    /**
+     * Holds the tree in parallel arrays on the heap.
+     */
+    private static class ArrayStorage implements Storage {
+
+        private final int[] parents;
+        private final int[] firstChildren;
+        private final int[] childCounts;
+        private final Object[] userObjects;
+
+        ArrayStorage(ImmutableTreeNode treeRoot) {
+            checkNotNull(treeRoot);
+            List<ImmutableTreeNode> nodes = new ArrayList<>();
+            nodes.add(treeRoot);
+
+            // The list doubles as the breadth first queue; its growing tail
+            // holds the children still to be visited.
+            for (int i = 0; i < nodes.size(); i++) {
+                Enumeration<ImmutableTreeNode> children = nodes.get(i)
+                        .children();
+
+                while (children.hasMoreElements()) {
+                    nodes.add(children.nextElement());
+                }
+            }
+
+            int n = nodes.size();
+            userObjects = new Object[n];
+            childCounts = new int[n];
+            for (int i = 0; i < n; i++) {
+                userObjects[i] = nodes.get(i).getUserObject();
+                childCounts[i] = nodes.get(i).getChildCount();
+            }
+            parents = new int[n];
+            firstChildren = new int[n];
+            link();
+        }
+
+        /**
+         * Takes the user objects and child counts of the nodes in breadth
+         * first order, from which the rest of the tree follows.
+         */
+        ArrayStorage(Object[] userObjects, int[] childCounts) {
+            checkArgument(userObjects.length == childCounts.length);
+            this.userObjects = userObjects;
+            this.childCounts = childCounts;
+            parents = new int[userObjects.length];
+            firstChildren = new int[userObjects.length];
+            link();
+        }
+
+        private void link() {
+            parents[0] = -1;
+            int nextChild = 1;
+            for (int i = 0; i < userObjects.length; i++) {
+                firstChildren[i] = nextChild;
+                for (int c = nextChild; c < nextChild + childCounts[i]; c++) {
+                    parents[c] = i;
+                }
+                nextChild += childCounts[i];
+            }
+        }
+
+        @Override
+        public int size() {
+            return userObjects.length;
+        }
+
+        @Override
+        public int getParent(int node) {
+            return parents[node];
+        }
+
+        @Override
+        public int getFirstChild(int node) {
+            return firstChildren[node];
+        }
+
+        @Override
+        public int getChildCount(int node) {
+            return childCounts[node];
+        }
+
+        @Override
+        public Object getUserObject(int node) {
+            return userObjects[node];
+        }
+    }
+
+    /**
+     * A lightweight handle onto a node of a {@link CompactTreeModel}.
+     */
+    public class Node implements TreeNode {
+
+        private final int index;
+
+        private Node(int index) {
+            this.index = index;
+        }
+
+        public Object getUserObject() {
+            return storage.getUserObject(index);
+        }
+
+        @Override
+        public TreeNode getChildAt(int childIndex) {
+            return CompactTreeModel.this.getChildAt(index, childIndex);
+        }
+
+        @Override
+        public int getChildCount() {
+            return storage.getChildCount(index);
+        }
+
+        @Override
+        public TreeNode getParent() {
+            int parent = storage.getParent(index);
+            return (parent < 0) ? null : new Node(parent);
+        }
+
+        @Override
+        public int getIndex(TreeNode node) {
+            checkNotNull(node);
+            if (!equalsModelOf(node)) {
+                return -1;
+            }
+            return CompactTreeModel.this.getIndex(index, ((Node) node).index);
+        }
+
+        @Override
+        public boolean getAllowsChildren() {
+            return storage.getChildCount(index) > 0;
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return storage.getChildCount(index) == 0;
+        }
+
+        @Override
+        public Enumeration<Node> children() {
+            return new Enumeration<Node>() {
+                private int next = storage.getFirstChild(index);
+                private final int end = next + storage.getChildCount(index);
+
+                @Override
+                public boolean hasMoreElements() {
+                    return next < end;
+                }
+
+                @Override
+                public Node nextElement() {
+                    if (next >= end) {
+                        throw new NoSuchElementException(
+                                "No more elements left.");
+                    }
+                    return new Node(next++);
+                }
+            };
+        }
+
+        private boolean equalsModelOf(Object obj) {
+            return obj instanceof Node
+                    && ((Node) obj).getModel() == CompactTreeModel.this;
+        }
+
+        private CompactTreeModel getModel() {
+            return CompactTreeModel.this;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return equalsModelOf(obj) && ((Node) obj).index == index;
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+
+        @Override
+        public String toString() {
+            return storage.getUserObject(index).toString();
+        }
+    }
+}
@@ -0,0 +1,658 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeNode;
+
+/**
+ * <p>
+ * A filtered view of a built {@link CollectionTreeModel}, showing only the
+ * leaves whose records match a predicate together with the groups above
+ * them. Groups left without any matching leaf are hidden. The underlying
+ * tree is never regrouped or rebuilt; the view shares its nodes.
+ * </p>
+ * <p>
+ * The view numbers the nodes of the underlying tree as it first sees them
+ * and mirrors the children of every group by number. It keeps a bitset of
+ * the matching leaves plus, for every node, the number of matching leaves
+ * beneath it. Changing the filter flips bits and adjusts those counts along
+ * the paths of just the leaves that changed, and the visible children of a
+ * group are derived from the counts when next asked for. Listeners are
+ * told of just the children which appeared or disappeared, so typing into a
+ * search box does not collapse the tree. {@link #narrowFilter(Predicate)},
+ * as used when typing extends a search term, only tests the leaves currently
+ * visible.
+ * </p>
+ * <p>
+ * The view follows the underlying model. Inserted, removed and changed nodes
+ * are applied to the mirror and the counts along their paths, and listeners
+ * are told of just the visible children which appeared, disappeared or
+ * changed as a result, so expanded paths elsewhere are left alone. Only a
+ * change to the structure of the whole tree renumbers the view. A lazy model
+ * is fully loaded when viewed. Call {@link #dispose()} once the view is no
+ * longer needed, so that it stops following the model.
+ * </p>
+ * <p>
+ * <blockquote><pre>
+ * FilteredTreeModel{@code<Book>} view =
+ *     new FilteredTreeModel{@code<>}(treeModel);
+ * JTree jTree = new JTree(view);
+ *
+ * view.setFilter(b -> b.title.contains(searchText));
+ * </pre></blockquote>
+ * </p>
+ * @param <T> The type of the source records.
+ * @see CollectionTreeModel
+ */
+public class FilteredTreeModel<T> extends
+        AbstractImmutableTreeModel<ImmutableTreeNode> {
+
+    private static final VisibleChildren NO_CHILDREN = new VisibleChildren(
+            new int[0], new int[0], new TreeNode[0]);
+
+    private final CollectionTreeModel<T> source;
+    private final TreeModelListener sourceListener = new SourceListener();
+    private Predicate<T> filter = r -> true;
+
+    // Keyed by equality, as flyweight leaves are handed out afresh each
+    // time; group nodes do not override equals.
+    private Map<TreeNode, Integer> nodeNumbers;
+    private List<TreeNode> nodes;
+    private List<T> records;
+    private IntList parents;
+    private IntList matchingLeafCounts;
+    private List<IntList> childNumbers;
+    private List<VisibleChildren> visibleChildren;
+    private BitSet matches;
+    private int removedCount;
+    // The groups whose visible children may have changed since the last
+    // event; parents are numbered before their children.
+    private final BitSet dirty = new BitSet();
+
+    /**
+     * Creates an unfiltered view of the given model.
+     * @param source the model to view, whose leaves must hold their records
+     */
+    public FilteredTreeModel(CollectionTreeModel<T> source) {
+        this.source = checkNotNull(source);
+        checkArgument(source.isRetainingRecords(),
+                "Cannot filter a model whose records were not retained.");
+        source.addTreeModelListener(sourceListener);
+        index();
+    }
+
+    /**
+     * Stops following the underlying model, so that the view can be garbage
+     * collected while the model lives on.
+     */
+    public void dispose() {
+        source.removeTreeModelListener(sourceListener);
+    }
+
+    /**
+     * Numbers the nodes of the underlying tree afresh and applies the current
+     * filter to every leaf.
+     */
+    private void index() {
+        root = (ImmutableTreeNode) source.getRoot();
+        nodeNumbers = new HashMap<>();
+        nodes = new ArrayList<>();
+        records = new ArrayList<>();
+        parents = new IntList();
+        matchingLeafCounts = new IntList();
+        childNumbers = new ArrayList<>();
+        visibleChildren = new ArrayList<>();
+        matches = new BitSet();
+        removedCount = 0;
+
+        register(root, -1);
+        dirty.clear();
+    }
+
+    /**
+     * Numbers the nodes afresh under the same filter, carrying over the
+     * visible children listeners have been shown, so nothing visible changes.
+     */
+    private void renumber() {
+        List<TreeNode> oldNodes = nodes;
+        List<VisibleChildren> oldVisibleChildren = visibleChildren;
+        index();
+
+        for (int number = 0; number < oldNodes.size(); number++) {
+            VisibleChildren visible = oldVisibleChildren.get(number);
+            if (visible == null) {
+                continue;
+            }
+            int[] numbers = new int[visible.nodes.length];
+            for (int i = 0; i < numbers.length; i++) {
+                numbers[i] = nodeNumbers.get(visible.nodes[i]);
+            }
+            visibleChildren.set(nodeNumbers.get(oldNodes.get(number)),
+                    new VisibleChildren(numbers, visible.indices,
+                            visible.nodes));
+        }
+    }
+
+    /**
+     * Numbers the given node and its descendants and applies the filter to
+     * its leaves.
+     * @return the number of the node
+     */
+    @SuppressWarnings("unchecked")
+    private int register(TreeNode node, int parent) {
+        int number = nodes.size();
+        nodeNumbers.put(node, number);
+        nodes.add(node);
+        parents.add(parent);
+        matchingLeafCounts.add(0);
+        visibleChildren.add(null);
+
+        if (node instanceof RecordTreeNode) {
+            T dataRecord = ((RecordTreeNode<T>) node).getRecord();
+            records.add(dataRecord);
+            childNumbers.add(null);
+            if (filter.test(dataRecord)) {
+                setMatch(number, true);
+            }
+        } else {
+            int childCount = node.getChildCount();
+            IntList children = new IntList(childCount);
+            records.add(null);
+            childNumbers.add(children);
+
+            for (int i = 0; i < childCount; i++) {
+                children.add(register(node.getChildAt(i), number));
+            }
+        }
+        return number;
+    }
+
+    /**
+     * Forgets the given node and its descendants, adjusting the counts of
+     * its ancestors. Its number is not reused until the view is renumbered.
+     */
+    private void unregister(int number) {
+        IntList children = childNumbers.get(number);
+        if (children != null) {
+            for (int i = 0; i < children.size(); i++) {
+                unregister(children.get(i));
+            }
+        }
+        if (matches.get(number)) {
+            setMatch(number, false);
+        }
+        nodeNumbers.remove(nodes.get(number), number);
+        nodes.set(number, null);
+        records.set(number, null);
+        childNumbers.set(number, null);
+        visibleChildren.set(number, null);
+        removedCount++;
+    }
+
+    /**
+     * Shows only the leaves whose records match the given predicate, and the
+     * groups above them. Every leaf is tested, so this takes time in
+     * proportion to the number of leaves, but only those whose visibility
+     * changes cost any more; where the new predicate only ever narrows the
+     * current one, {@link #narrowFilter(Predicate)} tests just the visible
+     * leaves. Listeners are told of the groups and leaves which appeared or
+     * disappeared under each group shown, so expanded paths and the
+     * selection survive.
+     * @param predicate the filter
+     */
+    public void setFilter(Predicate<? super T> predicate) {
+        checkNotNull(predicate);
+        if (removedCount > nodes.size() / 2) {
+            // Mostly numbers of removed nodes; renumbering reclaims them.
+            renumber();
+        }
+        filter = predicate::test;
+
+        for (int number = 0; number < nodes.size(); number++) {
+            T dataRecord = records.get(number);
+            if (dataRecord != null && predicate.test(dataRecord) != matches
+                    .get(number)) {
+                setMatch(number, !matches.get(number));
+            }
+        }
+        fireVisibleChildrenChanged();
+    }
+
+    /**
+     * Further restricts the current filter to the records also matching the
+     * given predicate. Only the leaves currently visible are tested, and
+     * listeners are told of just those which disappeared.
+     * @param predicate the additional filter
+     */
+    public void narrowFilter(Predicate<? super T> predicate) {
+        checkNotNull(predicate);
+        filter = filter.and(predicate);
+
+        for (int number = matches.nextSetBit(0); number >= 0; number = matches
+                .nextSetBit(number + 1)) {
+            if (!predicate.test(records.get(number))) {
+                setMatch(number, false);
+            }
+        }
+        fireVisibleChildrenChanged();
+    }
+
+    /**
+     * Shows every leaf again.
+     */
+    public void clearFilter() {
+        setFilter(r -> true);
+    }
+
+    /**
+     * @return the number of leaves currently visible.
+     */
+    public int getMatchCount() {
+        return matches.cardinality();
+    }
+
+    /**
+     * Flips a leaf and adjusts the matching leaf counts of its ancestors. The
+     * groups are marked dirty only where the child below them has appeared
+     * or disappeared.
+     */
+    private void setMatch(int number, boolean match) {
+        matches.set(number, match);
+        int delta = match ? 1 : -1;
+        matchingLeafCounts.set(number, matchingLeafCounts.get(number) + delta);
+
+        boolean childFlipped = true;
+        for (int parent = parents.get(number); parent >= 0; parent = parents
+                .get(parent)) {
+            if (childFlipped) {
+                dirty.set(parent);
+            }
+            int before = matchingLeafCounts.get(parent);
+            matchingLeafCounts.set(parent, before + delta);
+            childFlipped = (before == 0) != (before + delta == 0);
+        }
+    }
+
+    private boolean isVisible(int number) {
+        return number == 0 || matchingLeafCounts.get(number) > 0;
+    }
+
+    private VisibleChildren computeVisibleChildren(int number) {
+        IntList children = childNumbers.get(number);
+        if (children == null) {
+            return NO_CHILDREN;
+        }
+        int[] numbers = new int[children.size()];
+        int[] indices = new int[children.size()];
+        int count = 0;
+
+        for (int i = 0; i < children.size(); i++) {
+            if (matchingLeafCounts.get(children.get(i)) > 0) {
+                numbers[count] = children.get(i);
+                indices[count++] = i;
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        TreeNode[] visibleNodes = new TreeNode[count];
+        for (int i = 0; i < count; i++) {
+            visibleNodes[i] = nodes.get(numbers[i]);
+        }
+        return new VisibleChildren(numbers, Arrays.copyOf(indices, count),
+                visibleNodes);
+    }
+
+    /**
+     * Returns the children of the given node with any matching leaf.
+     */
+    private VisibleChildren getVisibleChildren(Object parent) {
+        Integer number = nodeNumbers.get(parent);
+        if (number == null) {
+            return NO_CHILDREN;
+        }
+        VisibleChildren visible = visibleChildren.get(number);
+
+        if (visible == null) {
+            visible = computeVisibleChildren(number);
+            visibleChildren.set(number, visible);
+        }
+        return visible;
+    }
+
+    @Override
+    public Object getChild(Object parent, int index) {
+        return getVisibleChildren(parent).nodes[index];
+    }
+
+    @Override
+    public int getChildCount(Object parent) {
+        return getVisibleChildren(parent).nodes.length;
+    }
+
+    @Override
+    public int getIndexOfChild(Object parent, Object child) {
+        if (parent == null || child == null) {
+            return -1;
+        }
+        Integer parentNumber = nodeNumbers.get(parent);
+        Integer childNumber = nodeNumbers.get(child);
+        if (parentNumber == null || childNumber == null
+                || parents.get(childNumber) != parentNumber) {
+            return -1;
+        }
+        VisibleChildren visible = getVisibleChildren(parent);
+        int index = Arrays.binarySearch(visible.indices, ((TreeNode) parent)
+                .getIndex((TreeNode) child));
+        return (index < 0 || visible.numbers[index] != childNumber) ? -1
+                : index;
+    }
+
+    private void fireRootStructureChanged() {
+        Collections.fill(visibleChildren, null);
+        dirty.clear();
+        fireTreeStructureChanged(this, new Object[] { root }, null, null);
+    }
+
+    /**
+     * Brings the visible children of every dirty group which listeners have
+     * been shown up to date, telling them which disappeared and which
+     * appeared. Groups are visited parents first.
+     */
+    private void fireVisibleChildrenChanged() {
+        for (int number = dirty.nextSetBit(0); number >= 0; number = dirty
+                .nextSetBit(number + 1)) {
+            VisibleChildren before = visibleChildren.get(number);
+            if (before == null) {
+                continue;
+            }
+            if (!isVisible(number)) {
+                visibleChildren.set(number, null);
+                continue;
+            }
+            VisibleChildren after = computeVisibleChildren(number);
+            visibleChildren.set(number, after);
+            fireDifferences(getPathToRoot(nodes.get(number)), before, after);
+        }
+        dirty.clear();
+    }
+
+    private void fireDifferences(Object[] path, VisibleChildren before,
+            VisibleChildren after) {
+        Set<Integer> beforeNumbers = new HashSet<>();
+        Set<Integer> afterNumbers = new HashSet<>();
+        for (int number : before.numbers) {
+            beforeNumbers.add(number);
+        }
+        for (int number : after.numbers) {
+            afterNumbers.add(number);
+        }
+
+        List<Integer> removed = new ArrayList<>();
+        for (int i = 0; i < before.numbers.length; i++) {
+            if (!afterNumbers.contains(before.numbers[i])) {
+                removed.add(i);
+            }
+        }
+        List<Integer> inserted = new ArrayList<>();
+        for (int i = 0; i < after.numbers.length; i++) {
+            if (!beforeNumbers.contains(after.numbers[i])) {
+                inserted.add(i);
+            }
+        }
+
+        if (!removed.isEmpty()) {
+            fireTreeNodesRemoved(this, path, toIntArray(removed), select(
+                    before.nodes, removed));
+        }
+        if (!inserted.isEmpty()) {
+            fireTreeNodesInserted(this, path, toIntArray(inserted), select(
+                    after.nodes, inserted));
+        }
+    }
+
+    private static int[] toIntArray(List<Integer> values) {
+        return values.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static Object[] select(TreeNode[] nodes, List<Integer> indices) {
+        return indices.stream().map(i -> nodes[i]).toArray();
+    }
+
+    /**
+     * The children of a group with any matching leaf: their numbers, their
+     * indices in the underlying group and the nodes themselves.
+     */
+    private static class VisibleChildren {
+        final int[] numbers;
+        final int[] indices;
+        final TreeNode[] nodes;
+
+        VisibleChildren(int[] numbers, int[] indices, TreeNode[] nodes) {
+            this.numbers = numbers;
+            this.indices = indices;
+            this.nodes = nodes;
+        }
+    }
+
+    /**
+     * A growable list of ints.
+     */
+    private static class IntList {
+        private int[] values;
+        private int size;
+
+        IntList() {
+            this(4);
+        }
+
+        IntList(int capacity) {
+            values = new int[Math.max(capacity, 1)];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(int index) {
+            checkIndex(index, size);
+            return values[index];
+        }
+
+        void set(int index, int value) {
+            checkIndex(index, size);
+            values[index] = value;
+        }
+
+        void add(int value) {
+            insert(size, value);
+        }
+
+        void insert(int index, int value) {
+            checkIndex(index, size + 1);
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size + (size >> 1) + 1);
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = value;
+            size++;
+        }
+
+        int remove(int index) {
+            checkIndex(index, size);
+            int value = values[index];
+            System.arraycopy(values, index + 1, values, index, size - index
+                    - 1);
+            size--;
+            return value;
+        }
+
+        private static void checkIndex(int index, int bound) {
+            if (index < 0 || index >= bound) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+        }
+    }
+
+    /**
+     * Applies the changes to the underlying model to the view.
+     */
+    private class SourceListener implements TreeModelListener {
+
+        @Override
+        public void treeNodesInserted(TreeModelEvent e) {
+            Integer parent = getParentNumber(e);
+            if (parent == null) {
+                refresh();
+                return;
+            }
+            TreeNode parentNode = nodes.get(parent);
+            IntList children = childNumbers.get(parent);
+
+            // The indices are ascending and those after all of the children
+            // were inserted.
+            for (int index : e.getChildIndices()) {
+                children.insert(index, register(parentNode.getChildAt(index),
+                        parent));
+            }
+            dirty.set(parent);
+            fireVisibleChildrenChanged();
+        }
+
+        @Override
+        public void treeNodesRemoved(TreeModelEvent e) {
+            Integer parent = getParentNumber(e);
+            if (parent == null) {
+                refresh();
+                return;
+            }
+            IntList children = childNumbers.get(parent);
+            int[] indices = e.getChildIndices();
+
+            // The indices are those before any of the children were removed.
+            for (int i = indices.length - 1; i >= 0; i--) {
+                unregister(children.remove(indices[i]));
+            }
+            dirty.set(parent);
+            fireVisibleChildrenChanged();
+        }
+
+        @Override
+        public void treeNodesChanged(TreeModelEvent e) {
+            Integer parent = getParentNumber(e);
+            if (parent == null) {
+                refresh();
+                return;
+            }
+            TreeNode parentNode = nodes.get(parent);
+            int[] indices = e.getChildIndices();
+            if (indices == null) {
+                if (isVisible(parent)) {
+                    fireTreeNodesChanged(FilteredTreeModel.this,
+                            getPathToRoot(parentNode), null, null);
+                }
+                return;
+            }
+
+            // A leaf replaced in place comes as a change; the replacement is
+            // numbered afresh and shown as a removal and an insertion.
+            IntList children = childNumbers.get(parent);
+            List<Integer> changed = new ArrayList<>();
+            for (int index : indices) {
+                int child = children.get(index);
+                TreeNode node = parentNode.getChildAt(index);
+
+                if (node.equals(nodes.get(child))) {
+                    changed.add(index);
+                } else {
+                    unregister(child);
+                    children.set(index, register(node, parent));
+                    dirty.set(parent);
+                }
+            }
+            fireVisibleChildrenChanged();
+            fireChildrenChanged(parent, changed);
+        }
+
+        @Override
+        public void treeStructureChanged(TreeModelEvent e) {
+            Integer number = getParentNumber(e);
+            if (number == null || number == 0) {
+                refresh();
+                return;
+            }
+            TreeNode node = nodes.get(number);
+            IntList children = childNumbers.get(number);
+            for (int i = 0; i < children.size(); i++) {
+                unregister(children.get(i));
+            }
+            IntList renumbered = new IntList(node.getChildCount());
+            childNumbers.set(number, renumbered);
+            for (int i = 0; i < node.getChildCount(); i++) {
+                renumbered.add(register(node.getChildAt(i), number));
+            }
+            visibleChildren.set(number, null);
+            dirty.clear(number);
+            fireVisibleChildrenChanged();
+
+            if (isVisible(number)) {
+                fireTreeStructureChanged(FilteredTreeModel.this,
+                        getPathToRoot(node), null, null);
+            }
+        }
+
+        /**
+         * Returns the number of the group the event is about, or null if the
+         * view does not know it as a group.
+         */
+        private Integer getParentNumber(TreeModelEvent e) {
+            Object[] path = e.getPath();
+            if (path == null || path.length == 0) {
+                return null;
+            }
+            Integer number = nodeNumbers.get(path[path.length - 1]);
+            return (number == null || childNumbers.get(number) == null) ? null
+                    : number;
+        }
+
+        /**
+         * Tells listeners of the changed children, by their underlying
+         * indices, which are visible and have been shown.
+         */
+        private void fireChildrenChanged(int parent, List<Integer> changed) {
+            VisibleChildren visible = visibleChildren.get(parent);
+            if (visible == null || changed.isEmpty()) {
+                return;
+            }
+            List<Integer> viewIndices = new ArrayList<>();
+            for (int index : changed) {
+                int viewIndex = Arrays.binarySearch(visible.indices, index);
+                if (viewIndex >= 0) {
+                    viewIndices.add(viewIndex);
+                }
+            }
+            if (!viewIndices.isEmpty()) {
+                fireTreeNodesChanged(FilteredTreeModel.this, getPathToRoot(
+                        nodes.get(parent)), toIntArray(viewIndices), select(
+                        visible.nodes, viewIndices));
+            }
+        }
+
+        private void refresh() {
+            index();
+            fireRootStructureChanged();
+        }
+    }
+}
@@ -4,13 +4,19 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 
 /**
@@ -86,16 +92,30 @@ import com.google.common.collect.ImmutableList;
  * automatically allocated; where i is the index+1 of the node at the time it
  * was added.
  * </p>
+ * <p>
+ * A Hierarchy may be read and modified from any thread. Its nodes are
+ * published as immutable snapshots, replaced whole on every modification, so
+ * reading them takes no lock and a build sees one consistent order throughout.
+ * Every modification also advances the {@link #getVersion() version}.
+ * </p>
  * @param <T> The type of data for which we want to specify a Hierarchy.
  * @see CollectionTreeModel
  */
 public class Hierarchy<T> {
 
-    private final List<Function<T, Object>> nodeObjectProviders = Collections
-            .synchronizedList(new ArrayList<>());
+    // Guards the replacement of the snapshot, not the reading of it.
+    private final Object lock = new Object();
+
+    private volatile Snapshot<T> snapshot = new Snapshot<>(ImmutableList.of(),
+            ImmutableList.of(), 0);
+
+    private final Set<Object> internedNodeIds = ConcurrentHashMap.newKeySet();
 
-    private final BiMap<Object, Function<T, Object>> nodeIdToProviderMap = HashBiMap
-            .create();
+    private final Map<Object, Comparator<Object>> comparators =
+            new ConcurrentHashMap<>();
+
+    private final Map<Object, Cache<?, Object>> caches =
+            new ConcurrentHashMap<>();
 
     private static final String defaultNodeIdFormat = "Node%d";
 
@@ -110,12 +130,14 @@ public class Hierarchy<T> {
      *        for the node.
      */
     public void addNode(Function<T, Object> nodeObjectProvider) {
-        addNode(nodeObjectProvider, createDefaultProviderId());
+        synchronized (lock) {
+            addNode(nodeObjectProvider, createDefaultProviderId());
+        }
     }
 
     private String createDefaultProviderId() {
         return String.format(defaultNodeIdFormat,
-                nodeObjectProviders.size() + 1);
+                snapshot.nodeIds.size() + 1);
     }
 
     /**
@@ -135,15 +157,126 @@ public class Hierarchy<T> {
         addNodeProviderAndIdMapping(nodeObjectProvider, nodeId);
     }
 
+    /**
+     * <p>
+     * Adds the given data provider forming a new node in the hierarchy, whose
+     * sibling nodes are to be ordered by the given comparator rather than in
+     * the order their user objects are first seen. Only the children of each
+     * group are sorted, once they have been grouped, so the source collection
+     * need not be sorted.
+     * </p>
+     * @param nodeObjectProvider Functional interface providing the data object
+     *        from T.
+     * @param nodeId User specified unique, non-null identifier for this node.
+     * @param comparator Orders the user objects of this node under each
+     *        parent.
+     * @exception IllegalArgumentException if the nodeId is equivalent to one
+     *            previously added or generated.
+     * @see #setComparator(Object, Comparator)
+     */
+    @SuppressWarnings("unchecked")
+    public <K> void addNode(Function<T, K> nodeObjectProvider, Object nodeId,
+            Comparator<? super K> comparator) {
+        checkNotNull(comparator);
+        synchronized (lock) {
+            addNodeProviderAndIdMapping(
+                    (Function<T, Object>) nodeObjectProvider, nodeId);
+            comparators.put(nodeId, (Comparator<Object>) comparator);
+        }
+    }
+
+    /**
+     * <p>
+     * Adds a node whose user objects are expensive to compute, such as names
+     * resolved through a reference-data service, but depend only on a cheap
+     * key of the record. The key is extracted from each record and the value
+     * computed at most once per key while it remains in a memo cache, which
+     * evicts the least recently used entries beyond the given size. Many
+     * records with few distinct keys then cost few lookups.
+     * </p>
+     * <p>
+     * The cache may be used from parallel builds. Neither key nor value may
+     * be null; an exception thrown computing a value is rethrown wrapped in
+     * an unchecked exception.
+     * </p>
+     * @param keyExtractor Extracts the cache key from T.
+     * @param valueFunction Computes the data object for a key.
+     * @param nodeId User specified unique, non-null identifier for this node.
+     * @param maximumSize The most values the cache holds.
+     * @exception IllegalArgumentException if the nodeId is equivalent to one
+     *            previously added or generated.
+     * @see #getCacheStats(Object)
+     */
+    public <K> void addNode(Function<T, K> keyExtractor,
+            Function<? super K, ?> valueFunction, Object nodeId,
+            long maximumSize) {
+        checkNotNull(keyExtractor);
+        checkNotNull(valueFunction);
+        checkArgument(maximumSize >= 0, "Negative cache size ('%s').",
+                maximumSize);
+
+        LoadingCache<K, Object> cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize).recordStats()
+                .build(new CacheLoader<K, Object>() {
+                    @Override
+                    public Object load(K key) {
+                        return valueFunction.apply(key);
+                    }
+                });
+        synchronized (lock) {
+            addNodeProviderAndIdMapping(
+                    r -> cache.getUnchecked(keyExtractor.apply(r)), nodeId);
+            caches.put(nodeId, cache);
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the hit and miss statistics of the memo cache of the given node,
+     * for sizing it. The statistics accumulate over every build.
+     * </p>
+     * @param nodeId The unique node identifier.
+     * @return the statistics, or empty if the node has no memo cache.
+     * @see #addNode(Function, Function, Object, long)
+     */
+    public Optional<CacheStats> getCacheStats(Object nodeId) {
+        Cache<?, Object> cache = caches.get(nodeId);
+        return (cache == null) ? Optional.empty() : Optional.of(cache.stats());
+    }
+
+    /**
+     * <p>
+     * Discards the memoized values of the given node, for example after the
+     * reference data behind them has changed. Takes effect from the next
+     * build.
+     * </p>
+     * @param nodeId The unique node identifier.
+     * @see #addNode(Function, Function, Object, long)
+     */
+    public void invalidateCache(Object nodeId) {
+        Cache<?, Object> cache = caches.get(nodeId);
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
     private void addNodeProviderAndIdMapping(
             Function<T, Object> nodeObjectProvider, Object nodeId) {
         checkNotNull(nodeObjectProvider);
         checkNotNull(nodeId);
-        checkArgument(!nodeIdToProviderMap.containsKey(nodeId),
-                "Duplicate node id ('%s').", nodeId);
 
-        nodeObjectProviders.add(nodeObjectProvider);
-        nodeIdToProviderMap.forcePut(nodeId, nodeObjectProvider);
+        synchronized (lock) {
+            Snapshot<T> current = snapshot;
+            checkArgument(!current.nodeIds.contains(nodeId),
+                    "Duplicate node id ('%s').", nodeId);
+
+            ImmutableList<Function<T, Object>> providers = ImmutableList
+                    .<Function<T, Object>> builder().addAll(current.providers)
+                    .add(nodeObjectProvider).build();
+            ImmutableList<Object> nodeIds = ImmutableList.builder()
+                    .addAll(current.nodeIds).add(nodeId).build();
+            snapshot = new Snapshot<>(providers, nodeIds, current.version + 1);
+        }
     }
 
     /**
@@ -154,7 +287,111 @@ public class Hierarchy<T> {
      * @return ImmutableList of Functional node object providers.
      */
     ImmutableList<Function<T, Object>> getNodeObjectProviders() {
-        return ImmutableList.copyOf(nodeObjectProviders);
+        return snapshot.providers;
+    }
+
+    /**
+     * Returns the current snapshot of the nodes, whose providers and ids
+     * correspond level by level. Read it once per build.
+     */
+    Snapshot<T> getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * <p>
+     * Returns the version of this hierarchy, which advances whenever a node
+     * is added or swapped or a node's interning or comparator is changed. A
+     * model, or any other reader, can compare versions to tell whether the
+     * hierarchy has changed since it last looked, without locking.
+     * </p>
+     * @return the current version.
+     */
+    public long getVersion() {
+        return snapshot.version;
+    }
+
+    /**
+     * Advances the version after a change held outside the snapshot.
+     */
+    private void advanceVersion() {
+        synchronized (lock) {
+            Snapshot<T> current = snapshot;
+            snapshot = new Snapshot<>(current.providers, current.nodeIds,
+                    current.version + 1);
+        }
+    }
+
+    /**
+     * <p>
+     * Sets whether the user objects of the given node are interned. When they
+     * are, models built with this hierarchy map equal user objects of that
+     * node to a single canonical instance using a {@link ValueDictionary}.
+     * Takes effect from the next build.
+     * </p>
+     * @param nodeId The unique node identifier.
+     * @param interned whether to intern the node's user objects.
+     * @exception IllegalArgumentException if there is no node with the id.
+     * @see CollectionTreeModel#getValueDictionary(Object)
+     */
+    public void setInterned(Object nodeId, boolean interned) {
+        checkArgument(indexOf(nodeId) >= 0, "Unknown node id ('%s').", nodeId);
+
+        if (interned) {
+            internedNodeIds.add(nodeId);
+        } else {
+            internedNodeIds.remove(nodeId);
+        }
+        advanceVersion();
+    }
+
+    /**
+     * @param nodeId The unique node identifier.
+     * @return whether the user objects of the node are interned.
+     */
+    public boolean isInterned(Object nodeId) {
+        return internedNodeIds.contains(nodeId);
+    }
+
+    boolean hasInternedNodes() {
+        return !internedNodeIds.isEmpty();
+    }
+
+    /**
+     * <p>
+     * Sets the comparator ordering the user objects of the given node under
+     * each parent, or with null restores first-seen ordering. Takes effect
+     * from the next build; {@link CollectionTreeModel#setComparator(Object,
+     * Comparator)} also resorts an existing tree.
+     * </p>
+     * @param nodeId The unique node identifier.
+     * @param comparator the comparator, which must accept the node's user
+     *        objects, or null.
+     * @exception IllegalArgumentException if there is no node with the id.
+     */
+    @SuppressWarnings("unchecked")
+    public void setComparator(Object nodeId, Comparator<?> comparator) {
+        checkArgument(indexOf(nodeId) >= 0, "Unknown node id ('%s').", nodeId);
+
+        if (comparator == null) {
+            comparators.remove(nodeId);
+        } else {
+            comparators.put(nodeId, (Comparator<Object>) comparator);
+        }
+        advanceVersion();
+    }
+
+    /**
+     * @param nodeId The unique node identifier.
+     * @return the comparator ordering the node's user objects, or null if
+     *         they are in first-seen order.
+     */
+    Comparator<Object> getComparator(Object nodeId) {
+        return comparators.get(nodeId);
+    }
+
+    boolean hasComparators() {
+        return !comparators.isEmpty();
     }
 
     /**
@@ -165,11 +402,7 @@ public class Hierarchy<T> {
      * @return ImmutableList of provider id's.
      */
     public ImmutableList<Object> getNodeIds() {
-        synchronized (nodeObjectProviders) {
-            return ImmutableList.copyOf(nodeObjectProviders.stream()
-                    .map(s -> nodeIdToProviderMap.inverse().get(s))
-                    .collect(Collectors.toList()));
-        }
+        return snapshot.nodeIds;
     }
 
     /**
@@ -203,7 +436,17 @@ public class Hierarchy<T> {
      * @see #swapNodes(Object, Object)
      */
     public void swapNodes(int i, int j) {
-        Collections.swap(nodeObjectProviders, i, j);
+        synchronized (lock) {
+            Snapshot<T> current = snapshot;
+            List<Function<T, Object>> providers = new ArrayList<>(
+                    current.providers);
+            List<Object> nodeIds = new ArrayList<>(current.nodeIds);
+            providers.set(i, providers.set(j, providers.get(i)));
+            nodeIds.set(i, nodeIds.set(j, nodeIds.get(i)));
+
+            snapshot = new Snapshot<>(ImmutableList.copyOf(providers),
+                    ImmutableList.copyOf(nodeIds), current.version + 1);
+        }
     }
 
     /**
@@ -215,10 +458,24 @@ public class Hierarchy<T> {
      *         <code>0 <= index < node.size()</code>
      */
     public final int indexOf(Object nodeId) {
-        synchronized (nodeObjectProviders) {
-            Function<T, Object> providerMatch = nodeIdToProviderMap.get(nodeId);
-            return (providerMatch == null) ? -1 : nodeObjectProviders
-                    .indexOf(providerMatch);
+        return snapshot.nodeIds.indexOf(nodeId);
+    }
+
+    /**
+     * An immutable view of the nodes at one version: the providers and ids in
+     * hierarchy order.
+     */
+    static final class Snapshot<T> {
+
+        final ImmutableList<Function<T, Object>> providers;
+        final ImmutableList<Object> nodeIds;
+        final long version;
+
+        Snapshot(ImmutableList<Function<T, Object>> providers,
+                ImmutableList<Object> nodeIds, long version) {
+            this.providers = providers;
+            this.nodeIds = nodeIds;
+            this.version = version;
         }
     }
 }
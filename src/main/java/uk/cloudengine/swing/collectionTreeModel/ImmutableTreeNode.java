@@ -3,10 +3,15 @@ package uk.cloudengine.swing.collectionTreeModel;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
-import java.util.Vector;
 
 import javax.swing.tree.TreeNode;
 
@@ -16,7 +21,13 @@ public class ImmutableTreeNode implements TreeNode {
     private final boolean childrenAllowed;
 
     private TreeNode parent;
-    private Optional<Vector<ImmutableTreeNode>> children;
+    private int indexInParent = -1;
+    private int level;
+    private Optional<ArrayList<ImmutableTreeNode>> children;
+    // Holds the children instead when they are flyweight leaves.
+    private LeafArray leaves;
+    // Only group nodes using it have one, so leaves stay small.
+    private GroupState groupState;
 
     public ImmutableTreeNode(Object userObject) {
         this(userObject, true);
@@ -29,18 +40,294 @@ public class ImmutableTreeNode implements TreeNode {
     }
 
     protected void addChild(ImmutableTreeNode child) {
+        insertChild(getChildCount(), child);
+    }
+
+    protected void insertChild(int index, ImmutableTreeNode child) {
         checkState(childrenAllowed, "No children are allowed for this node.");
+        loadChildren();
+
+        if (leaves != null || (!children.isPresent()
+                && child instanceof LeafHandle)) {
+            checkState(child instanceof RecordTreeNode,
+                    "Leaves cannot be mixed with child nodes.");
+            insertLeaf(index, child.getUserObject(),
+                    ((RecordTreeNode<?>) child).getRecord());
+            child.setParent(this);
+            child.indexInParent = index;
+            return;
+        }
 
         // Lazy creation of child list
         if (!children.isPresent()) {
-            children = Optional.of(new Vector<>());
+            children = Optional.of(new ArrayList<>());
         }
-        children.get().add(child);
+        children.get().add(index, child);
         child.setParent(this);
+        child.indexInParent = index;
+        // An appended child shifts no sibling and knows its own position.
+        if (index < children.get().size() - 1) {
+            invalidatePositionsFrom(index);
+        }
+
+        if (hasChildIndex() && child.getAllowsChildren()) {
+            groupState.childIndex.putIfAbsent(child.getUserObject(), child);
+        }
+    }
+
+    /**
+     * Adds a flyweight leaf, stored as its user object and record alone. A
+     * node holds either flyweight leaves or child nodes, so this is only
+     * allowed on a node without child nodes. Inserting a {@link LeafHandle}
+     * as a child does the same, attaching the handle.
+     * @see LeafArray
+     */
+    void addLeaf(Object userObject, Object dataRecord) {
+        checkState(childrenAllowed, "No children are allowed for this node.");
+        insertLeaf(leaves == null ? 0 : leaves.size(), userObject, dataRecord);
+    }
+
+    private void insertLeaf(int index, Object userObject, Object dataRecord) {
+        checkState(!children.isPresent(),
+                "Leaves cannot be mixed with child nodes.");
+        if (leaves == null) {
+            leaves = new LeafArray();
+        }
+        leaves.insert(index, checkNotNull(userObject),
+                checkNotNull(dataRecord));
+    }
+
+    void setLeafRecord(int index, Object dataRecord) {
+        leaves.setRecord(index, checkNotNull(dataRecord));
+    }
+
+    /**
+     * Returns a handle onto the flyweight leaf at the given index.
+     */
+    private LeafHandle<Object> getLeafHandle(int index) {
+        LeafHandle<Object> handle = new LeafHandle<>(leaves.getUserObject(
+                index), leaves.getRecord(index));
+        handle.setParent(this);
+        ((ImmutableTreeNode) handle).indexInParent = index;
+        return handle;
+    }
+
+    /**
+     * Removes the child at the given index, detaching it from this node.
+     * @param index the index of the child to remove
+     * @return the removed child
+     */
+    protected ImmutableTreeNode removeChildAt(int index) {
+        loadChildren();
+        if (leaves != null) {
+            ImmutableTreeNode leaf = new LeafHandle<>(leaves.getUserObject(
+                    index), leaves.getRecord(index));
+            leaves.remove(index);
+            return leaf;
+        }
+        ImmutableTreeNode child = children.get().remove(index);
+        child.setParent(null);
+        child.indexInParent = -1;
+        invalidatePositionsFrom(index);
+
+        if (hasChildIndex()) {
+            groupState.childIndex.remove(child.getUserObject(), child);
+        }
+        return child;
+    }
+
+    /**
+     * Marks the positions recorded by the children from the given index
+     * onwards as stale. They are renumbered only when
+     * {@link #getIndex(TreeNode)} is next asked about one of them, so that a
+     * run of insertions or removals near the front renumbers the later
+     * siblings once rather than on every change.
+     */
+    private void invalidatePositionsFrom(int index) {
+        if (index < children.get().size() && index < getRenumberFrom()) {
+            getGroupState().renumberFrom = index;
+        }
+    }
+
+    /**
+     * Records the position of each child with a stale one, so that
+     * {@link #getIndex(TreeNode)} does not have to search.
+     */
+    private void renumberChildren() {
+        ArrayList<ImmutableTreeNode> childList = children.get();
+        for (int i = getRenumberFrom(); i < childList.size(); i++) {
+            childList.get(i).indexInParent = i;
+        }
+        groupState.renumberFrom = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Sorts the children by their user objects. The sort is stable, so
+     * children with equal user objects keep their relative order.
+     * @param comparator orders the user objects of the children
+     * @return whether the order of the children changed
+     */
+    protected boolean sortChildren(Comparator<Object> comparator) {
+        loadChildren();
+        if (leaves != null) {
+            return leaves.sort(comparator);
+        }
+        if (!children.isPresent() || children.get().size() < 2) {
+            return false;
+        }
+
+        ArrayList<ImmutableTreeNode> childList = children.get();
+        ImmutableTreeNode[] sorted = childList.toArray(
+                new ImmutableTreeNode[childList.size()]);
+        Arrays.sort(sorted, (a, b) -> comparator.compare(a.getUserObject(),
+                b.getUserObject()));
+
+        boolean changed = false;
+        for (int i = 0; i < sorted.length; i++) {
+            if (childList.get(i) != sorted[i]) {
+                childList.set(i, sorted[i]);
+                changed = true;
+            }
+        }
+        if (changed) {
+            invalidatePositionsFrom(0);
+        }
+        return changed;
+    }
+
+    /**
+     * Whether the children of this node have been created. Only lazily
+     * loaded nodes answer false, until they are first accessed.
+     */
+    boolean hasLoadedChildren() {
+        return true;
+    }
+
+    /**
+     * Creates a hash index from user object to child for the children which
+     * allow children, so that {@link #getChildFor(Object)} no longer has to
+     * scan. The index is kept up to date as children are added.
+     */
+    protected void createChildIndex() {
+        Map<Object, ImmutableTreeNode> childIndex = new HashMap<>();
+        getGroupState().childIndex = childIndex;
+        if (leaves != null) {
+            return;
+        }
+
+        Enumeration<ImmutableTreeNode> en = children();
+        while (en.hasMoreElements()) {
+            ImmutableTreeNode child = en.nextElement();
+
+            if (child.getAllowsChildren()) {
+                childIndex.putIfAbsent(child.getUserObject(), child);
+            }
+        }
+    }
+
+    /**
+     * Drops the child index, if any, to reclaim its memory. Subsequent lookups
+     * fall back to a linear scan of the children.
+     */
+    protected void dropChildIndex() {
+        if (groupState != null) {
+            groupState.childIndex = null;
+        }
+    }
+
+    protected boolean hasChildIndex() {
+        return groupState != null && groupState.childIndex != null;
+    }
+
+    /**
+     * Returns the first child whose user object equals the given one, or null
+     * if there is no such child.
+     * @param userObject the user object to look up
+     * @return the matching child or null
+     */
+    protected ImmutableTreeNode getChildFor(Object userObject) {
+        loadChildren();
+        if (hasChildIndex()) {
+            return groupState.childIndex.get(userObject);
+        }
+        if (leaves != null) {
+            int index = leaves.indexOfUserObject(userObject);
+            return (index < 0) ? null : getLeafHandle(index);
+        }
+
+        Enumeration<ImmutableTreeNode> en = children();
+        while (en.hasMoreElements()) {
+            ImmutableTreeNode child = en.nextElement();
+
+            if (child.getUserObject().equals(userObject)) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the aggregate values held by this group node, or null if none
+     * have been computed.
+     * @see Aggregate
+     */
+    double[] getAggregates() {
+        return (groupState == null) ? null : groupState.aggregates;
+    }
+
+    void setAggregates(double[] aggregates) {
+        getGroupState().aggregates = aggregates;
+    }
+
+    private GroupState getGroupState() {
+        if (groupState == null) {
+            groupState = new GroupState();
+        }
+        return groupState;
+    }
+
+    private int getRenumberFrom() {
+        return (groupState == null) ? Integer.MAX_VALUE
+                : groupState.renumberFrom;
+    }
+
+    /**
+     * Called before the children are accessed or modified. Subclasses whose
+     * children are created on demand override this to create them; it does
+     * nothing here.
+     */
+    protected void loadChildren() {
     }
 
     public void setParent(TreeNode parent) {
         this.parent = parent;
+        updateLevel(parent == null ? 0 : TreeUtils.getLevel(parent) + 1);
+    }
+
+    /**
+     * Returns the number of ancestors of this node, which is cached and kept
+     * up to date as the node is attached and detached.
+     * @return the depth of this node, zero for a root
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets the level of this node and, when it changes, of its descendants.
+     * Nodes are normally attached at the depth they were built for, so the
+     * descendants only need visiting when a detached subtree is grafted in.
+     */
+    private void updateLevel(int newLevel) {
+        if (level == newLevel) {
+            return;
+        }
+        level = newLevel;
+        if (children.isPresent()) {
+            for (ImmutableTreeNode child : children.get()) {
+                child.updateLevel(newLevel + 1);
+            }
+        }
     }
 
     public Object getUserObject() {
@@ -54,12 +341,20 @@ public class ImmutableTreeNode implements TreeNode {
 
     @Override
     public TreeNode getChildAt(int childIndex) {
-        return children.get().elementAt(childIndex);
+        loadChildren();
+        if (leaves != null) {
+            return getLeafHandle(childIndex);
+        }
+        return children.get().get(childIndex);
     }
 
     @Override
     public int getChildCount() {
-        return children.get().size();
+        loadChildren();
+        if (leaves != null) {
+            return leaves.size();
+        }
+        return children.isPresent() ? children.get().size() : 0;
     }
 
     @Override
@@ -67,10 +362,42 @@ public class ImmutableTreeNode implements TreeNode {
         return parent;
     }
 
+    /**
+     * Returns the index of the given child in constant time using the position
+     * recorded when it was attached, renumbering the children first if that
+     * position may since have gone stale. Should the recorded position ever
+     * disagree, for example after {@link #setParent(TreeNode)} has been called
+     * directly, the children are searched instead.
+     */
     @Override
     public int getIndex(TreeNode node) {
         checkNotNull(node);
-        return children.get().indexOf(node);
+        loadChildren();
+        if (leaves != null) {
+            if (!(node instanceof LeafHandle) || node.getParent() != this) {
+                return -1;
+            }
+            LeafHandle<?> handle = (LeafHandle<?>) node;
+            return leaves.indexOfRecord(handle.getRecord(),
+                    ((ImmutableTreeNode) handle).indexInParent);
+        }
+        if (!children.isPresent()) {
+            return -1;
+        }
+
+        ArrayList<ImmutableTreeNode> childList = children.get();
+        if (node instanceof ImmutableTreeNode) {
+            int index = ((ImmutableTreeNode) node).indexInParent;
+            if (index >= getRenumberFrom()) {
+                renumberChildren();
+                index = ((ImmutableTreeNode) node).indexInParent;
+            }
+            if (index >= 0 && index < childList.size()
+                    && childList.get(index) == node) {
+                return index;
+            }
+        }
+        return childList.indexOf(node);
     }
 
     @Override
@@ -80,12 +407,46 @@ public class ImmutableTreeNode implements TreeNode {
 
     @Override
     public boolean isLeaf() {
+        if (leaves != null) {
+            return leaves.size() == 0;
+        }
         return !children.isPresent() || children.get().isEmpty();
     }
 
     @Override
     public Enumeration<ImmutableTreeNode> children() {
+        loadChildren();
+        if (leaves != null) {
+            return new Enumeration<ImmutableTreeNode>() {
+                private int next;
+
+                @Override
+                public boolean hasMoreElements() {
+                    return next < leaves.size();
+                }
+
+                @Override
+                public ImmutableTreeNode nextElement() {
+                    if (next >= leaves.size()) {
+                        throw new NoSuchElementException(
+                                "No more elements left.");
+                    }
+                    return getLeafHandle(next++);
+                }
+            };
+        }
         return children.isPresent() ? Collections.enumeration(children.get())
                 : Collections.emptyEnumeration();
     }
+
+    /**
+     * The state only some group nodes need: the watermark of stale child
+     * positions, the child index and the aggregates.
+     */
+    private static final class GroupState {
+        // Children from this index on may hold stale positions.
+        int renumberFrom = Integer.MAX_VALUE;
+        Map<Object, ImmutableTreeNode> childIndex;
+        double[] aggregates;
+    }
 }
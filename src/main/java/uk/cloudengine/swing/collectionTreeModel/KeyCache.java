@@ -0,0 +1,54 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * A columnar cache of node object provider results. The source records are
+ * captured in iteration order and, for each hierarchy node id, the results of
+ * applying that node's provider to every record are held in a column. A column
+ * is computed the first time it is asked for, so reordering the hierarchy only
+ * regroups the cached keys and never invokes a provider again.
+ * </p>
+ * @param <T> The type of the source records.
+ * @see CollectionTreeModel.Builder#cacheKeys()
+ */
+class KeyCache<T> {
+
+    private final Object[] records;
+    private final Map<Object, Object[]> columns = new ConcurrentHashMap<>();
+
+    KeyCache(Collection<T> srcData) {
+        records = srcData.toArray();
+    }
+
+    int size() {
+        return records.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    T getRecord(int index) {
+        return (T) records[index];
+    }
+
+    /**
+     * Returns the column of keys for the given node id, computing it with the
+     * given provider if it is not yet cached.
+     * @param nodeId the hierarchy node id
+     * @param provider the node object provider of that node
+     * @return the keys, indexed as the records
+     */
+    Object[] getColumn(Object nodeId, Function<T, Object> provider) {
+        return columns.computeIfAbsent(nodeId, id -> {
+            Object[] column = new Object[records.length];
+
+            for (int i = 0; i < records.length; i++) {
+                column[i] = provider.apply(getRecord(i));
+            }
+            return column;
+        });
+    }
+}
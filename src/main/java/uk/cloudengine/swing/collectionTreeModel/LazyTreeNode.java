@@ -0,0 +1,121 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * <p>
+ * A group node whose children are only created when they are first accessed,
+ * typically when a JTree expands it. Until then the node just holds the slice
+ * of source records that fall under it.
+ * </p>
+ * @param <T> The type of the source records.
+ * @see CollectionTreeModel.Builder#lazy()
+ */
+class LazyTreeNode<T> extends ImmutableTreeNode {
+
+    private final Grouping<T> grouping;
+    private final int level;
+    private List<T> records = new ArrayList<>();
+
+    private LazyTreeNode(Object userObject, Grouping<T> grouping, int level) {
+        super(userObject);
+        this.grouping = grouping;
+        this.level = level;
+    }
+
+    @Override
+    protected void loadChildren() {
+        if (records != null) {
+            List<T> slice = records;
+            records = null;
+            grouping.group(this, slice, level);
+        }
+    }
+
+    @Override
+    boolean hasLoadedChildren() {
+        return records == null;
+    }
+
+    @Override
+    public boolean isLeaf() {
+        // A group always has at least one record so answering this must not
+        // load the children.
+        return (records == null) ? super.isLeaf() : records.isEmpty();
+    }
+
+    /**
+     * The providers, captured when the tree was built, used to group the
+     * records of lazy nodes. Comparators are looked up as each group is
+     * loaded, so a comparator changed since the build applies to the groups
+     * loaded afterwards.
+     */
+    static class Grouping<T> {
+
+        private final ImmutableList<Function<T, Object>> providers;
+        private final ImmutableList<Object> nodeIds;
+        private final Hierarchy<T> hierarchy;
+        private final boolean retainChildIndex;
+
+        Grouping(ImmutableList<Function<T, Object>> providers,
+                ImmutableList<Object> nodeIds, Hierarchy<T> hierarchy,
+                boolean retainChildIndex) {
+            this.providers = providers;
+            this.nodeIds = nodeIds;
+            this.hierarchy = hierarchy;
+            this.retainChildIndex = retainChildIndex;
+        }
+
+        /**
+         * Groups the records under the parent by the provider of the given
+         * level; into leaves at the last level and otherwise into lazy nodes.
+         */
+        void group(ImmutableTreeNode parent, Iterable<T> records, int level) {
+            if (level >= providers.size()) {
+                return;
+            }
+            Function<T, Object> provider = providers.get(level);
+            Comparator<Object> comparator = hierarchy.getComparator(nodeIds
+                    .get(level));
+
+            if (level == providers.size() - 1) {
+                records.forEach(r -> parent.addChild(new RecordTreeNode<>(
+                        provider.apply(r), r)));
+                sortChildren(parent, comparator);
+                return;
+            }
+
+            if (!parent.hasChildIndex()) {
+                parent.createChildIndex();
+            }
+            for (T dataRecord : records) {
+                Object userObject = provider.apply(dataRecord);
+
+                @SuppressWarnings("unchecked")
+                LazyTreeNode<T> child = (LazyTreeNode<T>) parent
+                        .getChildFor(userObject);
+                if (child == null) {
+                    child = new LazyTreeNode<>(userObject, this, level + 1);
+                    parent.addChild(child);
+                }
+                child.records.add(dataRecord);
+            }
+            if (!retainChildIndex) {
+                parent.dropChildIndex();
+            }
+            sortChildren(parent, comparator);
+        }
+
+        private static void sortChildren(ImmutableTreeNode parent,
+                Comparator<Object> comparator) {
+            if (comparator != null) {
+                parent.sortChildren(comparator);
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * <p>
+ * The leaves of a group node held as parallel arrays of user objects and
+ * records rather than as node objects, for a model built with
+ * {@link CollectionTreeModel.Builder#flyweightLeaves()}. Each leaf costs two
+ * array slots; {@link ImmutableTreeNode} hands out {@link LeafHandle}s onto
+ * them on demand.
+ * </p>
+ */
+class LeafArray {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private Object[] userObjects = new Object[INITIAL_CAPACITY];
+    private Object[] records = new Object[INITIAL_CAPACITY];
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    Object getUserObject(int index) {
+        checkIndex(index);
+        return userObjects[index];
+    }
+
+    Object getRecord(int index) {
+        checkIndex(index);
+        return records[index];
+    }
+
+    void setRecord(int index, Object dataRecord) {
+        checkIndex(index);
+        records[index] = dataRecord;
+    }
+
+    void insert(int index, Object userObject, Object dataRecord) {
+        if (index < 0 || index > size) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        if (size == userObjects.length) {
+            int capacity = size + (size >> 1) + 1;
+            userObjects = Arrays.copyOf(userObjects, capacity);
+            records = Arrays.copyOf(records, capacity);
+        }
+        System.arraycopy(userObjects, index, userObjects, index + 1, size
+                - index);
+        System.arraycopy(records, index, records, index + 1, size - index);
+        userObjects[index] = userObject;
+        records[index] = dataRecord;
+        size++;
+    }
+
+    void remove(int index) {
+        checkIndex(index);
+        System.arraycopy(userObjects, index + 1, userObjects, index, size
+                - index - 1);
+        System.arraycopy(records, index + 1, records, index, size - index - 1);
+        size--;
+        userObjects[size] = null;
+        records[size] = null;
+    }
+
+    /**
+     * Returns the index of the leaf of the given record, by identity, trying
+     * the hinted index first.
+     */
+    int indexOfRecord(Object dataRecord, int hint) {
+        if (hint >= 0 && hint < size && records[hint] == dataRecord) {
+            return hint;
+        }
+        for (int i = 0; i < size; i++) {
+            if (records[i] == dataRecord) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int indexOfUserObject(Object userObject) {
+        for (int i = 0; i < size; i++) {
+            if (userObjects[i].equals(userObject)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sorts the leaves by user object; stable, like the sort of node children.
+     * @return whether the order changed
+     */
+    boolean sort(Comparator<Object> comparator) {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> comparator.compare(userObjects[a],
+                userObjects[b]));
+
+        boolean changed = false;
+        Object[] sortedUserObjects = new Object[userObjects.length];
+        Object[] sortedRecords = new Object[records.length];
+        for (int i = 0; i < size; i++) {
+            changed |= order[i] != i;
+            sortedUserObjects[i] = userObjects[order[i]];
+            sortedRecords[i] = records[order[i]];
+        }
+        userObjects = sortedUserObjects;
+        records = sortedRecords;
+        return changed;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+    }
+}
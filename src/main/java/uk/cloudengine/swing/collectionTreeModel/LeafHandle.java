@@ -0,0 +1,43 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+/**
+ * <p>
+ * A short-lived view of one leaf of a {@link LeafArray}, created each time
+ * the leaf is asked for. Handles onto the same record under the same parent
+ * are equal, so they can be used in TreePaths and compared across calls.
+ * Setting the record of an attached handle writes through to its parent.
+ * </p>
+ * @param <T> The type of the source record.
+ */
+class LeafHandle<T> extends RecordTreeNode<T> {
+
+    LeafHandle(Object userObject, T dataRecord) {
+        super(userObject, dataRecord);
+    }
+
+    @Override
+    void setRecord(T dataRecord) {
+        ImmutableTreeNode parent = (ImmutableTreeNode) getParent();
+        if (parent != null) {
+            parent.setLeafRecord(parent.getIndex(this), dataRecord);
+        }
+        super.setRecord(dataRecord);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof LeafHandle)) {
+            return false;
+        }
+        LeafHandle<?> other = (LeafHandle<?>) obj;
+        return other.getParent() == getParent()
+                && other.getRecord() == getRecord()
+                && other.getUserObject().equals(getUserObject());
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * System.identityHashCode(getParent())
+                + System.identityHashCode(getRecord());
+    }
+}
@@ -0,0 +1,232 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * <p>
+ * A thread safe wrapper of a Collection which notifies listeners of the
+ * records added to and removed from it. Use it as the source collection of a
+ * {@link CollectionTreeModel} and bind the two with an
+ * {@link ObservableCollectionBinding}, so that the tree follows a collection
+ * updated from any thread.
+ * </p>
+ * <p>
+ * Like {@link Collections#synchronizedCollection(Collection)}, every method
+ * synchronizes on this collection, and iteration must be synchronized on it
+ * by the caller. Listeners are notified while the lock is held, so they see
+ * changes in the order they were made and must not block. Spliterators and
+ * streams work on a copy taken under the lock, so need no synchronization.
+ * </p>
+ * @param <T> The type of the records.
+ * @see ObservableCollectionBinding
+ */
+public class ObservableCollection<T> extends AbstractCollection<T> {
+
+    /**
+     * Notified of the records added to and removed from an
+     * {@link ObservableCollection}, on the thread that changed it.
+     * @param <T> The type of the records.
+     */
+    public interface CollectionListener<T> {
+
+        void recordsAdded(Collection<? extends T> records);
+
+        void recordsRemoved(Collection<? extends T> records);
+    }
+
+    private final Collection<T> delegate;
+    private final List<CollectionListener<T>> listeners =
+            new CopyOnWriteArrayList<>();
+
+    /**
+     * Wraps the given collection, which must not be modified other than
+     * through this wrapper.
+     * @param delegate the collection to wrap
+     */
+    public ObservableCollection(Collection<T> delegate) {
+        this.delegate = checkNotNull(delegate);
+    }
+
+    public void addCollectionListener(CollectionListener<T> listener) {
+        listeners.add(checkNotNull(listener));
+    }
+
+    public void removeCollectionListener(CollectionListener<T> listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public synchronized boolean add(T dataRecord) {
+        if (!delegate.add(dataRecord)) {
+            return false;
+        }
+        fireRecordsAdded(Collections.singletonList(dataRecord));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean addAll(Collection<? extends T> records) {
+        List<T> added = new ArrayList<>();
+        for (T dataRecord : records) {
+            if (delegate.add(dataRecord)) {
+                added.add(dataRecord);
+            }
+        }
+        if (added.isEmpty()) {
+            return false;
+        }
+        fireRecordsAdded(added);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized boolean remove(Object dataRecord) {
+        if (!delegate.remove(dataRecord)) {
+            return false;
+        }
+        fireRecordsRemoved(Collections.singletonList((T) dataRecord));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean removeAll(Collection<?> records) {
+        return removeIf(records::contains);
+    }
+
+    @Override
+    public synchronized boolean retainAll(Collection<?> records) {
+        return removeIf(r -> !records.contains(r));
+    }
+
+    @Override
+    public synchronized void clear() {
+        List<T> removed = new ArrayList<>(delegate);
+        delegate.clear();
+        if (!removed.isEmpty()) {
+            fireRecordsRemoved(removed);
+        }
+    }
+
+    @Override
+    public synchronized boolean removeIf(Predicate<? super T> filter) {
+        List<T> removed = new ArrayList<>();
+        Iterator<T> records = delegate.iterator();
+
+        while (records.hasNext()) {
+            T dataRecord = records.next();
+            if (filter.test(dataRecord)) {
+                records.remove();
+                removed.add(dataRecord);
+            }
+        }
+        if (removed.isEmpty()) {
+            return false;
+        }
+        fireRecordsRemoved(removed);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean contains(Object dataRecord) {
+        return delegate.contains(dataRecord);
+    }
+
+    @Override
+    public synchronized int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public synchronized Object[] toArray() {
+        return delegate.toArray();
+    }
+
+    @Override
+    public synchronized <A> A[] toArray(A[] array) {
+        return delegate.toArray(array);
+    }
+
+    /**
+     * Returns an iterator over the records, which must be used while
+     * synchronized on this collection. Records removed through it are
+     * notified like any other removal.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        Iterator<T> records = delegate.iterator();
+
+        return new Iterator<T>() {
+            private T current;
+
+            @Override
+            public boolean hasNext() {
+                return records.hasNext();
+            }
+
+            @Override
+            public T next() {
+                current = records.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                synchronized (ObservableCollection.this) {
+                    records.remove();
+                    fireRecordsRemoved(Collections.singletonList(current));
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a spliterator over a copy of the records taken while holding
+     * the lock, so that streams of the collection, such as those a
+     * {@link CollectionTreeModel} builds from, are safe against changes made
+     * meanwhile by other threads.
+     */
+    @Override
+    public synchronized Spliterator<T> spliterator() {
+        return new ArrayList<>(delegate).spliterator();
+    }
+
+    @Override
+    public Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    @Override
+    public Stream<T> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return delegate.toString();
+    }
+
+    private void fireRecordsAdded(Collection<T> records) {
+        Collection<T> unmodifiable = Collections.unmodifiableCollection(
+                records);
+        listeners.forEach(l -> l.recordsAdded(unmodifiable));
+    }
+
+    private void fireRecordsRemoved(Collection<T> records) {
+        Collection<T> unmodifiable = Collections.unmodifiableCollection(
+                records);
+        listeners.forEach(l -> l.recordsRemoved(unmodifiable));
+    }
+}
@@ -0,0 +1,276 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * <p>
+ * Keeps a {@link CollectionTreeModel} in step with the
+ * {@link ObservableCollection} it was built from, however often and from
+ * whichever threads the collection changes.
+ * </p>
+ * <p>
+ * Additions and removals are queued as they happen. At most once per tick
+ * the queue is drained on the event dispatch thread and coalesced, a record
+ * added and then removed within the tick cancelling out, and the net changes
+ * are applied with {@link CollectionTreeModel#removeRecords(Collection)} and
+ * {@link CollectionTreeModel#addRecords(Collection)} in a single batch, which
+ * notifies listeners of just the affected nodes. A record removed and added
+ * again within the tick is removed and added afresh, since it may have been
+ * changed in between; it is only found under its old keys if the model
+ * {@link CollectionTreeModel.Builder#indexRecords() indexes records}.
+ * However fast the updates arrive the tree is therefore touched once per
+ * tick.
+ * </p>
+ * <p>
+ * Should a tick's net changes exceed the batch limit the tree is rebuilt
+ * instead, bounding the work of a tick. The records are captured under the
+ * collection's lock, but the tree is built in the background with
+ * {@link CollectionTreeModel#rebuildAsync(Executor)}, so neither the event
+ * dispatch thread nor the threads changing the collection wait for it.
+ * Changes made meanwhile stay queued until the new tree is in place.
+ * </p>
+ * <p>
+ * <blockquote><pre>
+ * ObservableCollection{@code<Quote>} quotes =
+ *     new ObservableCollection{@code<>}(new ArrayList{@code<>}());
+ * CollectionTreeModel{@code<Quote>} treeModel =
+ *     CollectionTreeModel.Builder{@code<>}(quotes)
+ *         .addNode(q -> q.exchange)
+ *         .addNode(q -> q.symbol)
+ *         .build();
+ * ObservableCollectionBinding{@code<Quote>} binding =
+ *     new ObservableCollectionBinding{@code<>}(quotes, treeModel);
+ * </pre></blockquote>
+ * </p>
+ * @param <T> The type of the source records.
+ * @see ObservableCollection
+ */
+public class ObservableCollectionBinding<T> {
+
+    public static final int DEFAULT_TICK_MILLIS = 40;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 10000;
+
+    private final ObservableCollection<T> collection;
+    private final CollectionTreeModel<T> treeModel;
+    private final int maxBatchSize;
+    private final Executor rebuildExecutor;
+    // The rebuild in progress, if any; only touched on the event dispatch
+    // thread.
+    private CompletableFuture<Void> rebuild;
+    private final Queue<Change<T>> pendingChanges =
+            new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean tickScheduled = new AtomicBoolean();
+    private final Timer timer;
+    private final ObservableCollection.CollectionListener<T> listener =
+            new ChangeQueuer();
+
+    /**
+     * Binds with a tick of {@value #DEFAULT_TICK_MILLIS}ms and a batch limit
+     * of {@value #DEFAULT_MAX_BATCH_SIZE} records.
+     * @param collection the collection the model was built from
+     * @param treeModel the model to keep in step
+     */
+    public ObservableCollectionBinding(ObservableCollection<T> collection,
+            CollectionTreeModel<T> treeModel) {
+        this(collection, treeModel, DEFAULT_TICK_MILLIS,
+                DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Binds with rebuilds run on the common fork join pool.
+     * @param collection the collection the model was built from
+     * @param treeModel the model to keep in step
+     * @param tickMillis the least time between updates of the model
+     * @param maxBatchSize the most net changes applied individually in a
+     *        tick; beyond this the model is rebuilt
+     */
+    public ObservableCollectionBinding(ObservableCollection<T> collection,
+            CollectionTreeModel<T> treeModel, int tickMillis,
+            int maxBatchSize) {
+        this(collection, treeModel, tickMillis, maxBatchSize, ForkJoinPool
+                .commonPool());
+    }
+
+    /**
+     * @param collection the collection the model was built from
+     * @param treeModel the model to keep in step
+     * @param tickMillis the least time between updates of the model
+     * @param maxBatchSize the most net changes applied individually in a
+     *        tick; beyond this the model is rebuilt
+     * @param rebuildExecutor the executor to rebuild the model with
+     */
+    public ObservableCollectionBinding(ObservableCollection<T> collection,
+            CollectionTreeModel<T> treeModel, int tickMillis,
+            int maxBatchSize, Executor rebuildExecutor) {
+        checkArgument(tickMillis >= 0, "Negative tick ('%s').", tickMillis);
+        checkArgument(maxBatchSize >= 0, "Negative batch size ('%s').",
+                maxBatchSize);
+        this.collection = checkNotNull(collection);
+        this.treeModel = checkNotNull(treeModel);
+        this.maxBatchSize = maxBatchSize;
+        this.rebuildExecutor = checkNotNull(rebuildExecutor);
+
+        timer = new Timer(tickMillis, e -> applyPendingChanges());
+        timer.setRepeats(false);
+        collection.addCollectionListener(listener);
+    }
+
+    /**
+     * Stops following the collection. Changes still queued are discarded.
+     */
+    public void unbind() {
+        collection.removeCollectionListener(listener);
+        pendingChanges.clear();
+        SwingUtilities.invokeLater(timer::stop);
+    }
+
+    private void queue(Collection<? extends T> records, boolean added) {
+        records.forEach(r -> pendingChanges.add(new Change<>(r, added)));
+
+        if (tickScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(timer::restart);
+        }
+    }
+
+    /**
+     * Drains and coalesces the queued changes and applies them to the model.
+     * Runs on the event dispatch thread.
+     */
+    private void applyPendingChanges() {
+        tickScheduled.set(false);
+        if (rebuild != null) {
+            // The changes are applied to the new tree once it is in place.
+            return;
+        }
+
+        // The removals and additions left of each record, by identity, kept
+        // in the order the records were first changed. Only an addition
+        // followed by a removal cancels out; a record removed and added again
+        // may have changed in between, so is removed and added afresh.
+        Map<T, int[]> counts = new IdentityHashMap<>();
+        List<T> changed = new ArrayList<>();
+        Change<T> change;
+        while ((change = pendingChanges.poll()) != null) {
+            int[] count = counts.get(change.dataRecord);
+            if (count == null) {
+                count = new int[2];
+                counts.put(change.dataRecord, count);
+                changed.add(change.dataRecord);
+            }
+            if (change.added) {
+                count[1]++;
+            } else if (count[1] > 0) {
+                count[1]--;
+            } else {
+                count[0]++;
+            }
+        }
+
+        List<T> removed = new ArrayList<>();
+        List<T> added = new ArrayList<>();
+        for (T dataRecord : changed) {
+            int[] count = counts.get(dataRecord);
+            for (int i = 0; i < count[0]; i++) {
+                removed.add(dataRecord);
+            }
+            for (int i = 0; i < count[1]; i++) {
+                added.add(dataRecord);
+            }
+        }
+
+        if (removed.size() + added.size() > maxBatchSize) {
+            // No change can be queued while the lock is held, so the records
+            // rebuildAsync captures before returning include exactly the
+            // changes discarded from the queue. Any cached keys predate them
+            // and must be captured afresh.
+            CompletableFuture<Void> started;
+            synchronized (collection) {
+                pendingChanges.clear();
+                treeModel.invalidateKeyCache();
+                started = treeModel.rebuildAsync(rebuildExecutor);
+            }
+            rebuild = started;
+            started.whenComplete((result, failure) -> SwingUtilities
+                    .invokeLater(() -> rebuildFinished(started, failure)));
+            return;
+        }
+        treeModel.beginBatch();
+        try {
+            if (!removed.isEmpty()) {
+                treeModel.removeRecords(removed);
+            }
+            if (!added.isEmpty()) {
+                treeModel.addRecords(added);
+            }
+        } finally {
+            treeModel.endBatch();
+        }
+    }
+
+    /**
+     * Applies the changes queued while the tree was rebuilt. Should the
+     * rebuild have failed the tree is rebuilt in place instead, as the
+     * changes it was to include have been discarded from the queue.
+     */
+    private void rebuildFinished(CompletableFuture<Void> finished,
+            Throwable failure) {
+        if (rebuild != finished) {
+            return;
+        }
+        rebuild = null;
+        Throwable cause = (failure instanceof CompletionException) ? failure
+                .getCause() : failure;
+
+        if (cause != null && !(cause instanceof CancellationException)) {
+            synchronized (collection) {
+                pendingChanges.clear();
+                treeModel.invalidateKeyCache();
+                treeModel.rebuild();
+            }
+        } else if (!pendingChanges.isEmpty()) {
+            applyPendingChanges();
+        }
+    }
+
+    private static class Change<T> {
+        final T dataRecord;
+        final boolean added;
+
+        Change(T dataRecord, boolean added) {
+            this.dataRecord = dataRecord;
+            this.added = added;
+        }
+    }
+
+    private class ChangeQueuer implements
+            ObservableCollection.CollectionListener<T> {
+
+        @Override
+        public void recordsAdded(Collection<? extends T> records) {
+            queue(records, true);
+        }
+
+        @Override
+        public void recordsRemoved(Collection<? extends T> records) {
+            queue(records, false);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreeNode;
+
+/**
+ * <p>
+ * A paged view of another {@link TreeModel}, in which a node with more
+ * children than the page size shows them through synthetic {@link Range}
+ * nodes, such as "1&ndash;1000" and "1001&ndash;2000", instead of all at
+ * once. A range still holding more children than the page size is divided
+ * again, so however many children a node has, no node of the view has more
+ * than the page size and expanding one costs no more than a page.
+ * </p>
+ * <p>
+ * The ranges are worked out from the child counts whenever they are asked
+ * for; nothing is copied from the underlying model and there is no index to
+ * keep up to date. Ranges over the same children are equal, so they can be
+ * used in TreePaths.
+ * </p>
+ * <p>
+ * The view follows the underlying model. Events are passed on with their
+ * paths running through the ranges, except that insertions and removals under
+ * a paged node shift its ranges and are passed on as a structure change of
+ * that node. Call {@link #dispose()} once the view is no longer needed, so
+ * that it stops following the model.
+ * </p>
+ * <p>
+ * <blockquote><pre>
+ * JTree jTree = new JTree(new PagedTreeModel(treeModel, 1000));
+ * </pre></blockquote>
+ * </p>
+ * @see CollectionTreeModel
+ * @see FilteredTreeModel
+ */
+public class PagedTreeModel extends AbstractImmutableTreeModel<TreeNode> {
+
+    private final TreeModel source;
+    private final int pageSize;
+    private final TreeModelListener sourceListener = new SourceListener();
+
+    /**
+     * Creates a paged view of the given model.
+     * @param source the model to view
+     * @param pageSize the most children shown under any node of the view
+     */
+    public PagedTreeModel(TreeModel source, int pageSize) {
+        checkArgument(pageSize > 1, "Page size too small ('%s').", pageSize);
+        this.source = checkNotNull(source);
+        this.pageSize = pageSize;
+        source.addTreeModelListener(sourceListener);
+    }
+
+    /**
+     * Stops following the underlying model, so that the view can be garbage
+     * collected while the model lives on.
+     */
+    public void dispose() {
+        source.removeTreeModelListener(sourceListener);
+    }
+
+    /**
+     * @return the most children shown under any node of the view
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public Object getRoot() {
+        return source.getRoot();
+    }
+
+    /**
+     * Returns the number of children each child range of a run of the given
+     * length spans: the smallest power of the page size which needs no more
+     * than a page of ranges.
+     */
+    private long getRangeSize(int length) {
+        long size = pageSize;
+        while ((length + size - 1) / size > pageSize) {
+            size *= pageSize;
+        }
+        return size;
+    }
+
+    private static Object getNode(Object parent) {
+        return (parent instanceof Range) ? ((Range) parent).node : parent;
+    }
+
+    private static int getStart(Object parent) {
+        return (parent instanceof Range) ? ((Range) parent).start : 0;
+    }
+
+    private int getEnd(Object parent) {
+        return (parent instanceof Range) ? ((Range) parent).end : source
+                .getChildCount(parent);
+    }
+
+    @Override
+    public Object getChild(Object parent, int index) {
+        Object node = getNode(parent);
+        int start = getStart(parent);
+        int end = getEnd(parent);
+
+        if (index < 0) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        if (end - start <= pageSize) {
+            if (index >= end - start) {
+                throw new ArrayIndexOutOfBoundsException(index);
+            }
+            return source.getChild(node, start + index);
+        }
+        long size = getRangeSize(end - start);
+        long rangeStart = start + index * size;
+        if (rangeStart >= end) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return new Range(node, (int) rangeStart, (int) Math.min(rangeStart
+                + size, end));
+    }
+
+    @Override
+    public int getChildCount(Object parent) {
+        int length = getEnd(parent) - getStart(parent);
+        if (length <= pageSize) {
+            return length;
+        }
+        long size = getRangeSize(length);
+        return (int) ((length + size - 1) / size);
+    }
+
+    @Override
+    public int getIndexOfChild(Object parent, Object child) {
+        if (parent == null || child == null) {
+            return -1;
+        }
+        Object node = getNode(parent);
+        int start = getStart(parent);
+        int end = getEnd(parent);
+
+        if (end - start <= pageSize) {
+            if (child instanceof Range) {
+                return -1;
+            }
+            int index = source.getIndexOfChild(node, child);
+            return (index >= start && index < end) ? index - start : -1;
+        }
+        if (!(child instanceof Range)) {
+            return -1;
+        }
+        int index = getIndexOfRangeFor(parent, ((Range) child).start);
+        if (index < 0 || index >= getChildCount(parent)) {
+            return -1;
+        }
+        return child.equals(getChild(parent, index)) ? index : -1;
+    }
+
+    @Override
+    public boolean isLeaf(Object node) {
+        return !(node instanceof Range) && source.isLeaf(node);
+    }
+
+    /**
+     * Appends to the path the ranges of the view between the given node and
+     * its child at the given index, outermost first.
+     * @return the innermost range, or the node if it is not paged
+     */
+    private Object addRanges(List<Object> path, Object node, int index) {
+        Object parent = node;
+        while (getEnd(parent) - getStart(parent) > pageSize) {
+            parent = getChild(parent, getIndexOfRangeFor(parent, index));
+            path.add(parent);
+        }
+        return parent;
+    }
+
+    private int getIndexOfRangeFor(Object parent, int index) {
+        int start = getStart(parent);
+        return (int) ((index - start) / getRangeSize(getEnd(parent) - start));
+    }
+
+    /**
+     * Returns the path of the view to the last node of the given path of the
+     * underlying model.
+     */
+    private Object[] toViewPath(Object[] path) {
+        List<Object> viewPath = new ArrayList<>(path.length);
+        viewPath.add(path[0]);
+
+        for (int i = 1; i < path.length; i++) {
+            addRanges(viewPath, path[i - 1], source.getIndexOfChild(
+                    path[i - 1], path[i]));
+            viewPath.add(path[i]);
+        }
+        return viewPath.toArray();
+    }
+
+    /**
+     * Passes the events of the underlying model on with paths of the view.
+     */
+    private class SourceListener implements TreeModelListener {
+
+        @Override
+        public void treeNodesChanged(TreeModelEvent e) {
+            Object[] path = e.getPath();
+            int[] indices = e.getChildIndices();
+            if (path == null || indices == null || indices.length == 0
+                    || !isPaged(e, 0)) {
+                forward(e, PagedTreeModel.this::fireTreeNodesChanged);
+                return;
+            }
+
+            // The changed children may lie in different ranges, so the event
+            // is split into one per innermost range, keyed by the path to it.
+            Object parent = path[path.length - 1];
+            Object[] parentPath = toViewPath(path);
+            Map<List<Object>, List<Integer>> changed = new LinkedHashMap<>();
+
+            for (int i = 0; i < indices.length; i++) {
+                List<Object> rangePath = new ArrayList<>(Arrays.asList(
+                        parentPath));
+                addRanges(rangePath, parent, indices[i]);
+                changed.computeIfAbsent(rangePath, p -> new ArrayList<>())
+                        .add(i);
+            }
+
+            for (Map.Entry<List<Object>, List<Integer>> entry : changed
+                    .entrySet()) {
+                List<Object> rangePath = entry.getKey();
+                Range range = (Range) rangePath.get(rangePath.size() - 1);
+                List<Integer> positions = entry.getValue();
+                int[] childIndices = new int[positions.size()];
+                Object[] children = new Object[positions.size()];
+
+                for (int i = 0; i < childIndices.length; i++) {
+                    int index = indices[positions.get(i)];
+                    childIndices[i] = index - range.start;
+                    children[i] = (e.getChildren() == null) ? source.getChild(
+                            parent, index) : e.getChildren()[positions.get(i)];
+                }
+                fireTreeNodesChanged(PagedTreeModel.this, rangePath.toArray(),
+                        childIndices, children);
+            }
+        }
+
+        @Override
+        public void treeNodesInserted(TreeModelEvent e) {
+            if (isPaged(e, -countOf(e))) {
+                restructure(e);
+            } else {
+                forward(e, PagedTreeModel.this::fireTreeNodesInserted);
+            }
+        }
+
+        @Override
+        public void treeNodesRemoved(TreeModelEvent e) {
+            if (isPaged(e, countOf(e))) {
+                restructure(e);
+            } else {
+                forward(e, PagedTreeModel.this::fireTreeNodesRemoved);
+            }
+        }
+
+        @Override
+        public void treeStructureChanged(TreeModelEvent e) {
+            restructure(e);
+        }
+
+        private int countOf(TreeModelEvent e) {
+            return (e.getChildIndices() == null) ? 0
+                    : e.getChildIndices().length;
+        }
+
+        /**
+         * Whether the parent of the event is paged now, or was before the
+         * given change to its child count.
+         */
+        private boolean isPaged(TreeModelEvent e, int countChange) {
+            Object[] path = e.getPath();
+            if (path == null) {
+                return false;
+            }
+            int count = source.getChildCount(path[path.length - 1]);
+            return Math.max(count, count + countChange) > pageSize;
+        }
+
+        private void restructure(TreeModelEvent e) {
+            Object[] path = e.getPath();
+            fireTreeStructureChanged(PagedTreeModel.this, (path == null) ? null
+                    : toViewPath(path), null, null);
+        }
+
+        private void forward(TreeModelEvent e, Fire fire) {
+            Object[] path = e.getPath();
+            fire.fire(PagedTreeModel.this, (path == null) ? null
+                    : toViewPath(path), e.getChildIndices(), e.getChildren());
+        }
+    }
+
+    private interface Fire {
+        void fire(Object source, Object[] path, int[] childIndices,
+                Object[] children);
+    }
+
+    /**
+     * A synthetic node of a {@link PagedTreeModel} standing for a run of the
+     * children of a node of the underlying model.
+     */
+    public static final class Range {
+
+        private final Object node;
+        private final int start;
+        private final int end;
+
+        private Range(Object node, int start, int end) {
+            this.node = node;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return the node of the underlying model whose children this range
+         *         spans
+         */
+        public Object getNode() {
+            return node;
+        }
+
+        /**
+         * @return the index of the first child spanned, inclusive
+         */
+        public int getStart() {
+            return start;
+        }
+
+        /**
+         * @return the index after the last child spanned, exclusive
+         */
+        public int getEnd() {
+            return end;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Range)) {
+                return false;
+            }
+            Range other = (Range) obj;
+            return other.node.equals(node) && other.start == start
+                    && other.end == end;
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * node.hashCode() + start) * 31 + end;
+        }
+
+        /**
+         * Shows the range numbered from one, as "1&ndash;1000".
+         */
+        @Override
+        public String toString() {
+            return (start + 1) + "\u2013" + end;
+        }
+    }
+}
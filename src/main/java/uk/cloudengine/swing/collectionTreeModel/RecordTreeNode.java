@@ -0,0 +1,31 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>
+ * A leaf node which, besides its user object, keeps a reference to the source
+ * record it was created from. {@link CollectionTreeModel} creates its leaves as
+ * RecordTreeNodes so that a selected leaf can be mapped back to its record and
+ * so that records can be removed or updated individually.
+ * </p>
+ * @param <T> The type of the source record.
+ * @see CollectionTreeModel
+ */
+public class RecordTreeNode<T> extends ImmutableTreeNode {
+
+    private T record;
+
+    public RecordTreeNode(Object userObject, T record) {
+        super(userObject, false);
+        this.record = checkNotNull(record);
+    }
+
+    public T getRecord() {
+        return record;
+    }
+
+    void setRecord(T record) {
+        this.record = checkNotNull(record);
+    }
+}
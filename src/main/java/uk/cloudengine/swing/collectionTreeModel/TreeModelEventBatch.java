@@ -0,0 +1,378 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>
+ * Buffers the TreeModelEvents raised during a batch and merges them into as
+ * few events as will bring a listener from the tree before the batch to the
+ * tree after it. Used by {@link AbstractImmutableTreeModel#beginBatch()}.
+ * </p>
+ * <p>
+ * Events are grouped by the parent node they refer to. For each parent the
+ * inserted, removed and changed children are tracked through the sequence
+ * of events, translating their indices as later events shift them, in time
+ * logarithmic in the number of changes to the parent, so that at the end a
+ * parent yields at most one removed event, in the indices before the batch,
+ * followed by one inserted and one changed event, in the indices after it.
+ * An inserted child removed again within the batch cancels out, and a
+ * change to an inserted child is implied by its insertion.
+ * </p>
+ * <p>
+ * Events below a node that was inserted or removed within the batch are
+ * dropped, as are those below a node whose structure changed, which is
+ * reported as a single structure change.
+ * </p>
+ */
+class TreeModelEventBatch {
+
+    enum Type {
+        STRUCTURE_CHANGED, INSERTED, REMOVED, CHANGED
+    }
+
+    /**
+     * A buffered or merged event.
+     */
+    static class Event {
+        final Type type;
+        final Object source;
+        final Object[] path;
+        final int[] childIndices;
+        final Object[] children;
+
+        Event(Type type, Object source, Object[] path, int[] childIndices,
+                Object[] children) {
+            this.type = type;
+            this.source = source;
+            this.path = path;
+            this.childIndices = childIndices;
+            this.children = children;
+        }
+    }
+
+    private final Map<Object, ParentChanges> parents = new IdentityHashMap<>();
+    private final List<ParentChanges> parentOrder = new ArrayList<>();
+    private final Set<Object> insertedOrRemoved = Collections
+            .newSetFromMap(new IdentityHashMap<>());
+
+    void add(Type type, Object source, Object[] path, int[] childIndices,
+            Object[] children) {
+        if (path == null || path.length == 0) {
+            return;
+        }
+        Object parent = path[path.length - 1];
+        ParentChanges changes = parents.get(parent);
+        if (changes == null) {
+            changes = new ParentChanges(source, path);
+            parents.put(parent, changes);
+            parentOrder.add(changes);
+        }
+
+        switch (type) {
+        case STRUCTURE_CHANGED:
+            changes.structureChanged = true;
+            break;
+        case INSERTED:
+            for (int i = 0; i < childIndices.length; i++) {
+                changes.insert(childIndices[i], children[i]);
+                insertedOrRemoved.add(children[i]);
+            }
+            break;
+        case REMOVED:
+            // Indices refer to the children before any were removed.
+            for (int i = childIndices.length - 1; i >= 0; i--) {
+                changes.remove(childIndices[i], children[i]);
+                insertedOrRemoved.add(children[i]);
+            }
+            break;
+        case CHANGED:
+            if (childIndices == null) {
+                changes.selfChanged = true;
+            } else {
+                for (int i = 0; i < childIndices.length; i++) {
+                    changes.change(childIndices[i], children[i]);
+                }
+            }
+            break;
+        }
+    }
+
+    /**
+     * @return the merged events, in the order their parents were first
+     *         referred to.
+     */
+    List<Event> merge() {
+        List<Event> merged = new ArrayList<>();
+
+        for (ParentChanges changes : parentOrder) {
+            if (isSuperseded(changes.path)) {
+                continue;
+            }
+            if (changes.structureChanged) {
+                merged.add(new Event(Type.STRUCTURE_CHANGED, changes.source,
+                        changes.path, null, null));
+                continue;
+            }
+            if (!changes.removed.isEmpty()) {
+                merged.add(changes.toRemovedEvent());
+            }
+            changes.addCurrentEvents(merged);
+            if (changes.selfChanged) {
+                merged.add(new Event(Type.CHANGED, changes.source,
+                        changes.path, null, null));
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Whether the events of the parent with the given path are covered by
+     * others: the parent or an ancestor was inserted or removed, or an
+     * ancestor's structure changed.
+     */
+    private boolean isSuperseded(Object[] path) {
+        for (int i = 0; i < path.length; i++) {
+            if (insertedOrRemoved.contains(path[i])) {
+                return true;
+            }
+            if (i < path.length - 1) {
+                ParentChanges ancestor = parents.get(path[i]);
+                if (ancestor != null && ancestor.structureChanged) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A run of the current children of a parent: either a single child
+     * inserted within the batch or a run of consecutive children from before
+     * it. The runs are held in a treap ordered by position and sized by the
+     * number of children beneath, so that a child is found by its current
+     * index in logarithmic time however many changes precede it.
+     */
+    private static class Slot {
+        final Object node;
+        int start;
+        long length;
+        final int priority = ThreadLocalRandom.current().nextInt();
+        Slot left;
+        Slot right;
+        long size;
+
+        Slot(Object node) {
+            this.node = node;
+            length = 1;
+            size = 1;
+        }
+
+        Slot(int start, long length) {
+            this.node = null;
+            this.start = start;
+            this.length = length;
+            size = length;
+        }
+
+        boolean isInserted() {
+            return node != null;
+        }
+
+        void update() {
+            size = sizeOf(left) + length + sizeOf(right);
+        }
+
+        static long sizeOf(Slot slot) {
+            return (slot == null) ? 0 : slot.size;
+        }
+    }
+
+    /**
+     * The net changes to the children of one parent. Removed and changed
+     * children from before the batch are held by their index before the
+     * batch; the current order of the surviving and inserted children is held
+     * as runs, from which the current indices are read off when merging.
+     */
+    private static class ParentChanges {
+        // Stands for the children beyond any index referred to, whose count
+        // is not known.
+        private static final long UNBOUNDED = Long.MAX_VALUE / 4;
+
+        final Object source;
+        final Object[] path;
+        boolean structureChanged;
+        boolean selfChanged;
+
+        final TreeMap<Integer, Object> removed = new TreeMap<>();
+        final TreeMap<Integer, Object> changed = new TreeMap<>();
+        private Slot root = new Slot(0, UNBOUNDED);
+
+        ParentChanges(Object source, Object[] path) {
+            this.source = source;
+            this.path = path;
+        }
+
+        void insert(int index, Object node) {
+            Slot[] parts = split(root, index);
+            root = join(join(parts[0], new Slot(node)), parts[1]);
+        }
+
+        void remove(int index, Object node) {
+            Slot[] parts = split(root, index);
+            Slot[] rest = split(parts[1], 1);
+            Slot child = rest[0];
+
+            // An inserted child removed again cancels out.
+            if (!child.isInserted()) {
+                changed.remove(child.start);
+                removed.put(child.start, node);
+            }
+            root = join(parts[0], rest[1]);
+        }
+
+        void change(int index, Object node) {
+            Slot slot = root;
+            long position = index;
+            while (true) {
+                long leftSize = Slot.sizeOf(slot.left);
+                if (position < leftSize) {
+                    slot = slot.left;
+                } else if (position < leftSize + slot.length) {
+                    break;
+                } else {
+                    position -= leftSize + slot.length;
+                    slot = slot.right;
+                }
+            }
+
+            // A change to an inserted child is implied by its insertion.
+            if (!slot.isInserted()) {
+                changed.put((int) (slot.start + position - Slot.sizeOf(
+                        slot.left)), node);
+            }
+        }
+
+        /**
+         * Splits the runs into those holding the children before the given
+         * index and those holding the rest, dividing a run if need be.
+         */
+        private static Slot[] split(Slot slot, long index) {
+            if (slot == null) {
+                return new Slot[] { null, null };
+            }
+            long leftSize = Slot.sizeOf(slot.left);
+            if (index <= leftSize) {
+                Slot[] parts = split(slot.left, index);
+                slot.left = parts[1];
+                slot.update();
+                return new Slot[] { parts[0], slot };
+            }
+            if (index >= leftSize + slot.length) {
+                Slot[] parts = split(slot.right, index - leftSize
+                        - slot.length);
+                slot.right = parts[0];
+                slot.update();
+                return new Slot[] { slot, parts[1] };
+            }
+            long offset = index - leftSize;
+            Slot tail = new Slot((int) (slot.start + offset), slot.length
+                    - offset);
+            Slot right = join(tail, slot.right);
+            slot.length = offset;
+            slot.right = null;
+            slot.update();
+            return new Slot[] { slot, right };
+        }
+
+        private static Slot join(Slot left, Slot right) {
+            if (left == null) {
+                return right;
+            }
+            if (right == null) {
+                return left;
+            }
+            if (left.priority > right.priority) {
+                left.right = join(left.right, right);
+                left.update();
+                return left;
+            }
+            right.left = join(left, right.left);
+            right.update();
+            return right;
+        }
+
+        Event toRemovedEvent() {
+            int[] indices = new int[removed.size()];
+            Object[] nodes = new Object[removed.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Object> entry : removed.entrySet()) {
+                indices[i] = entry.getKey();
+                nodes[i] = entry.getValue();
+                i++;
+            }
+            return new Event(Type.REMOVED, source, path, indices, nodes);
+        }
+
+        /**
+         * Adds the inserted and the changed event, in current indices, read
+         * off the runs in order.
+         */
+        void addCurrentEvents(List<Event> merged) {
+            List<Integer> insertedIndices = new ArrayList<>();
+            List<Object> insertedNodes = new ArrayList<>();
+            List<Integer> changedIndices = new ArrayList<>();
+            List<Object> changedNodes = new ArrayList<>();
+            Deque<Slot> stack = new ArrayDeque<>();
+            long position = 0;
+
+            for (Slot slot = root; slot != null || !stack.isEmpty();) {
+                if (slot != null) {
+                    stack.push(slot);
+                    slot = slot.left;
+                    continue;
+                }
+                slot = stack.pop();
+                if (slot.isInserted()) {
+                    insertedIndices.add((int) position);
+                    insertedNodes.add(slot.node);
+                } else {
+                    for (Map.Entry<Integer, Object> entry : changed.tailMap(
+                            slot.start).entrySet()) {
+                        long offset = entry.getKey() - (long) slot.start;
+                        if (offset >= slot.length) {
+                            break;
+                        }
+                        changedIndices.add((int) (position + offset));
+                        changedNodes.add(entry.getValue());
+                    }
+                }
+                position += slot.length;
+                slot = slot.right;
+            }
+
+            if (!insertedIndices.isEmpty()) {
+                merged.add(toEvent(Type.INSERTED, insertedIndices,
+                        insertedNodes));
+            }
+            if (!changedIndices.isEmpty()) {
+                merged.add(toEvent(Type.CHANGED, changedIndices,
+                        changedNodes));
+            }
+        }
+
+        private Event toEvent(Type type, List<Integer> indices,
+                List<Object> nodes) {
+            return new Event(type, source, path, indices.stream().mapToInt(
+                    Integer::intValue).toArray(), nodes.toArray());
+        }
+    }
+}
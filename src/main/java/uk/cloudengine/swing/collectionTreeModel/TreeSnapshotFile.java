@@ -0,0 +1,328 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * Reads and writes the binary file format behind
+ * {@link CompactTreeModel#write(java.nio.file.Path)} and
+ * {@link CompactTreeModel#load(java.nio.file.Path)}. All numbers are big
+ * endian ints and the file is laid out as:
+ * </p>
+ * <ul>
+ * <li>a header of magic number, format version, node count and value
+ * count;</li>
+ * <li>the structure section: parent, first child, child count and value id
+ * for each node, in breadth first order;</li>
+ * <li>value count + 1 offsets into the value data, so that the length of a
+ * value is the distance to the next offset;</li>
+ * <li>the value data: a type tag byte followed by the encoded user
+ * object.</li>
+ * </ul>
+ * <p>
+ * Every section has a fixed size per entry, so a mapped file is read in
+ * place without first being scanned.
+ * </p>
+ * <p>
+ * Only strings, ints, longs, doubles and booleans are encoded. There is
+ * deliberately no fallback to Java serialization, so loading a file from an
+ * untrusted source cannot instantiate arbitrary classes.
+ * </p>
+ */
+final class TreeSnapshotFile {
+
+    private static final int MAGIC = 0x43544D31; // "CTM1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int NODE_SIZE = 16;
+
+    private static final byte STRING = 0;
+    private static final byte INTEGER = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte BOOLEAN = 4;
+
+    private TreeSnapshotFile() {
+    }
+
+    static void write(CompactTreeModel.Storage storage, Path file)
+            throws IOException {
+        int size = storage.size();
+        int[] valueIds = new int[size];
+        Map<Object, Integer> dictionary = new HashMap<>();
+        List<byte[]> values = new ArrayList<>();
+
+        for (int i = 0; i < size; i++) {
+            Object userObject = storage.getUserObject(i);
+            Integer id = dictionary.get(userObject);
+
+            if (id == null) {
+                id = values.size();
+                dictionary.put(userObject, id);
+                values.add(encode(userObject));
+            }
+            valueIds[i] = id;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(values.size());
+
+            for (int i = 0; i < size; i++) {
+                out.writeInt(storage.getParent(i));
+                out.writeInt(storage.getFirstChild(i));
+                out.writeInt(storage.getChildCount(i));
+                out.writeInt(valueIds[i]);
+            }
+
+            int offset = 0;
+            for (byte[] value : values) {
+                out.writeInt(offset);
+                offset += value.length;
+            }
+            out.writeInt(offset);
+
+            for (byte[] value : values) {
+                out.write(value);
+            }
+        }
+    }
+
+    private static byte[] encode(Object userObject) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        if (userObject instanceof String) {
+            out.writeByte(STRING);
+            out.write(((String) userObject).getBytes(StandardCharsets.UTF_8));
+        } else if (userObject instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) userObject);
+        } else if (userObject instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) userObject);
+        } else if (userObject instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) userObject);
+        } else if (userObject instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) userObject);
+        } else {
+            checkArgument(false, "User object of %s cannot be written.",
+                    (userObject == null) ? null : userObject.getClass());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static CompactTreeModel.Storage map(Path file) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot is too large to map: " + file);
+            }
+            // The mapping stays valid once the channel is closed.
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a tree snapshot: " + file);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported snapshot version "
+                    + buffer.getInt(4) + ": " + file);
+        }
+        MappedStorage storage = new MappedStorage(buffer);
+        if (storage.size() < 1 || !storage.fits()) {
+            throw new IOException("Truncated tree snapshot: " + file);
+        }
+        String corruption = storage.check();
+        if (corruption != null) {
+            throw new IOException("Corrupt tree snapshot, " + corruption
+                    + ": " + file);
+        }
+        return storage;
+    }
+
+    /**
+     * Reads the tree from a mapped file in place, decoding each user object
+     * the first time it is asked for.
+     */
+    private static final class MappedStorage implements
+            CompactTreeModel.Storage {
+
+        private final ByteBuffer buffer;
+        private final int size;
+        private final int valueCount;
+        private final int offsetsStart;
+        private final int dataStart;
+        private final AtomicReferenceArray<Object> values;
+
+        MappedStorage(ByteBuffer buffer) {
+            this.buffer = buffer;
+            size = buffer.getInt(8);
+            valueCount = buffer.getInt(12);
+            offsetsStart = HEADER_SIZE + size * NODE_SIZE;
+            dataStart = offsetsStart + (valueCount + 1) * 4;
+            // Sized only once the offsets are known to fit in the file.
+            values = new AtomicReferenceArray<>(fits() ? valueCount : 0);
+        }
+
+        boolean fits() {
+            long end = HEADER_SIZE + (long) size * NODE_SIZE
+                    + ((long) valueCount + 1) * 4;
+            return valueCount >= 0 && end <= buffer.limit()
+                    && dataStart + (long) getOffset(valueCount)
+                    <= buffer.limit();
+        }
+
+        /**
+         * Checks every index of the structure and value offset sections
+         * against the sections they point into, so that a corrupt file is
+         * rejected up front rather than failing as it is browsed. No user
+         * object is decoded.
+         * @return what is wrong, or null if nothing is
+         */
+        String check() {
+            if (getParent(0) != -1) {
+                return "root has a parent";
+            }
+            int nextChild = 1;
+            for (int node = 0; node < size; node++) {
+                int childCount = getChildCount(node);
+                int valueId = field(node, 3);
+
+                if (childCount < 0 || getFirstChild(node) != nextChild
+                        || childCount > size - nextChild) {
+                    return "children of node " + node + " out of range";
+                }
+                for (int child = nextChild; child < nextChild
+                        + childCount; child++) {
+                    if (getParent(child) != node) {
+                        return "parent of node " + child + " is not "
+                                + node;
+                    }
+                }
+                if (valueId < 0 || valueId >= valueCount) {
+                    return "value of node " + node + " out of range";
+                }
+                nextChild += childCount;
+            }
+            if (nextChild != size) {
+                return "unreachable nodes";
+            }
+
+            for (int id = 0; id < valueCount; id++) {
+                // Every value holds at least its type tag.
+                if (getOffset(id) < 0 || getOffset(id + 1) <= getOffset(id)) {
+                    return "offset of value " + id + " out of range";
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        private int field(int node, int field) {
+            if (node < 0 || node >= size) {
+                throw new ArrayIndexOutOfBoundsException(node);
+            }
+            return buffer.getInt(HEADER_SIZE + node * NODE_SIZE + field * 4);
+        }
+
+        @Override
+        public int getParent(int node) {
+            return field(node, 0);
+        }
+
+        @Override
+        public int getFirstChild(int node) {
+            return field(node, 1);
+        }
+
+        @Override
+        public int getChildCount(int node) {
+            return field(node, 2);
+        }
+
+        @Override
+        public Object getUserObject(int node) {
+            int id = field(node, 3);
+            Object value = values.get(id);
+
+            if (value == null) {
+                // Decoding twice under a race is harmless; either result can
+                // be kept.
+                value = decode(id);
+                if (!values.compareAndSet(id, null, value)) {
+                    value = values.get(id);
+                }
+            }
+            return value;
+        }
+
+        private int getOffset(int id) {
+            return buffer.getInt(offsetsStart + id * 4);
+        }
+
+        private Object decode(int id) {
+            int start = dataStart + getOffset(id);
+            int length = getOffset(id + 1) - getOffset(id) - 1;
+            ByteBuffer value = buffer.duplicate();
+            value.position(start + 1);
+
+            switch (buffer.get(start)) {
+            case STRING:
+                byte[] bytes = new byte[length];
+                value.get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            case INTEGER:
+                checkLength(id, length, Integer.BYTES);
+                return value.getInt();
+            case LONG:
+                checkLength(id, length, Long.BYTES);
+                return value.getLong();
+            case DOUBLE:
+                checkLength(id, length, Double.BYTES);
+                return value.getDouble();
+            case BOOLEAN:
+                checkLength(id, length, 1);
+                return value.get() != 0;
+            default:
+                throw new IllegalStateException("Unknown type of user object "
+                        + id + ".");
+            }
+        }
+
+        private static void checkLength(int id, int length, int expected) {
+            if (length != expected) {
+                throw new IllegalStateException("Cannot decode user object "
+                        + id + ".");
+            }
+        }
+    }
+}
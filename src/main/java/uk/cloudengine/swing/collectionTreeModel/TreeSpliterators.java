@@ -0,0 +1,295 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+import javax.swing.tree.TreeNode;
+
+/**
+ * <p>
+ * Splittable traversals of a {@link TreeNode} and its descendants, backing
+ * {@link TreeUtils#stream(TreeNode, TreeUtils.Order)}.
+ * </p>
+ * <p>
+ * The depth first traversals keep their position in a stack of frames held in
+ * parallel arrays: the node, the index of its next child and the end of the
+ * range of children still to visit. Children are reached through
+ * {@link TreeNode#getChildAt(int)}, so no {@link java.util.Enumeration} or
+ * frame object is allocated per node. A split hands the earlier half of the
+ * shallowest range with more than one child left, together with everything
+ * above it on the stack, to the new spliterator, which therefore covers a
+ * prefix of the remaining nodes as the {@link Spliterator#ORDERED} contract
+ * requires. Where no range has more than one child left, as on a fresh
+ * spliterator whose only frame is the virtual one above the root, the split
+ * first descends through the single remaining children until it reaches a
+ * node with several.
+ * </p>
+ */
+final class TreeSpliterators {
+
+    private static final int CHARACTERISTICS = Spliterator.ORDERED
+            | Spliterator.NONNULL;
+
+    private TreeSpliterators() {
+    }
+
+    /**
+     * State shared by the pre-order and post-order traversals. The bottom
+     * frame is a virtual one, with a null node, whose only child is the root.
+     */
+    abstract static class DepthFirst implements Spliterator<TreeNode> {
+
+        private static final int INITIAL_DEPTH = 16;
+
+        final TreeNode root;
+
+        TreeNode[] nodes;
+        int[] next;
+        int[] end;
+        boolean[] emit;
+        int size;
+        // Nodes descended into by a split but not yet visited, which come
+        // before everything on the stack; only the pre-order has any.
+        Deque<TreeNode> heads;
+
+        private long estimate;
+
+        DepthFirst(TreeNode root) {
+            this(root, INITIAL_DEPTH, Long.MAX_VALUE);
+            push(null, false);
+        }
+
+        private DepthFirst(TreeNode root, int capacity, long estimate) {
+            this.root = checkNotNull(root);
+            this.estimate = estimate;
+            nodes = new TreeNode[capacity];
+            next = new int[capacity];
+            end = new int[capacity];
+            emit = new boolean[capacity];
+        }
+
+        /**
+         * Returns an empty spliterator over the same tree, into which
+         * {@link #trySplit()} moves the frames of the prefix.
+         */
+        abstract DepthFirst newPrefix(int capacity, long estimate);
+
+        final TreeNode childAt(int frame, int index) {
+            TreeNode node = nodes[frame];
+            return node == null ? root : node.getChildAt(index);
+        }
+
+        final void push(TreeNode node, boolean emitNode) {
+            if (size == nodes.length) {
+                int capacity = size * 2;
+                nodes = Arrays.copyOf(nodes, capacity);
+                next = Arrays.copyOf(next, capacity);
+                end = Arrays.copyOf(end, capacity);
+                emit = Arrays.copyOf(emit, capacity);
+            }
+            nodes[size] = node;
+            next[size] = 0;
+            end[size] = node == null ? 1 : node.getChildCount();
+            emit[size] = emitNode;
+            size++;
+        }
+
+        final void pop() {
+            nodes[--size] = null;
+        }
+
+        /**
+         * Pushes the only child left to visit of the top frame without
+         * visiting it.
+         */
+        abstract void descend();
+
+        @Override
+        public Spliterator<TreeNode> trySplit() {
+            int frame = 0;
+            while (frame < size && end[frame] - next[frame] < 2) {
+                frame++;
+            }
+            // The only child left of the top frame comes before the children
+            // left of the frames below, so descending keeps the order.
+            while (frame == size && size > 0
+                    && end[size - 1] - next[size - 1] == 1) {
+                descend();
+                if (end[size - 1] - next[size - 1] >= 2) {
+                    frame = size - 1;
+                }
+            }
+            if (frame == size) {
+                return null;
+            }
+            int mid = next[frame] + (end[frame] - next[frame]) / 2;
+
+            estimate >>>= 1;
+            DepthFirst prefix = newPrefix(Math.max(size - frame,
+                    INITIAL_DEPTH), estimate);
+            for (int i = frame; i < size; i++) {
+                prefix.nodes[i - frame] = nodes[i];
+                prefix.next[i - frame] = next[i];
+                prefix.end[i - frame] = end[i];
+                prefix.emit[i - frame] = emit[i];
+            }
+            prefix.size = size - frame;
+            prefix.heads = heads;
+            heads = null;
+            prefix.end[0] = mid;
+            // Only the suffix finishes the split frame's children
+            prefix.emit[0] = false;
+
+            next[frame] = mid;
+            while (size > frame + 1) {
+                pop();
+            }
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return CHARACTERISTICS;
+        }
+    }
+
+    /**
+     * Visits each node before its children.
+     */
+    static final class PreOrder extends DepthFirst {
+
+        PreOrder(TreeNode root) {
+            super(root);
+        }
+
+        private PreOrder(TreeNode root, int capacity, long estimate) {
+            super(root, capacity, estimate);
+        }
+
+        @Override
+        DepthFirst newPrefix(int capacity, long estimate) {
+            return new PreOrder(root, capacity, estimate);
+        }
+
+        @Override
+        void descend() {
+            int top = size - 1;
+            TreeNode child = childAt(top, next[top]++);
+            push(child, false);
+            if (heads == null) {
+                heads = new ArrayDeque<>();
+            }
+            heads.add(child);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super TreeNode> action) {
+            checkNotNull(action);
+            if (heads != null && !heads.isEmpty()) {
+                action.accept(heads.poll());
+                return true;
+            }
+            while (size > 0) {
+                int top = size - 1;
+
+                if (next[top] < end[top]) {
+                    TreeNode child = childAt(top, next[top]++);
+                    push(child, false);
+                    action.accept(child);
+                    return true;
+                }
+                pop();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Visits each node after its children.
+     */
+    static final class PostOrder extends DepthFirst {
+
+        PostOrder(TreeNode root) {
+            super(root);
+        }
+
+        private PostOrder(TreeNode root, int capacity, long estimate) {
+            super(root, capacity, estimate);
+        }
+
+        @Override
+        DepthFirst newPrefix(int capacity, long estimate) {
+            return new PostOrder(root, capacity, estimate);
+        }
+
+        @Override
+        void descend() {
+            int top = size - 1;
+            push(childAt(top, next[top]++), true);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super TreeNode> action) {
+            checkNotNull(action);
+            while (size > 0) {
+                int top = size - 1;
+
+                if (next[top] < end[top]) {
+                    push(childAt(top, next[top]++), true);
+                    continue;
+                }
+                TreeNode node = nodes[top];
+                boolean emitNode = emit[top];
+                pop();
+                if (emitNode) {
+                    action.accept(node);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Visits the nodes level by level. A breadth first order has no prefix
+     * that can be described by a subtree, so splitting is left to
+     * {@link Spliterators.AbstractSpliterator}, which hands off batches of
+     * nodes already visited.
+     */
+    static final class BreadthFirst extends
+            Spliterators.AbstractSpliterator<TreeNode> {
+
+        private final Deque<TreeNode> queue = new ArrayDeque<>();
+
+        BreadthFirst(TreeNode root) {
+            super(Long.MAX_VALUE, CHARACTERISTICS);
+            queue.add(checkNotNull(root));
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super TreeNode> action) {
+            checkNotNull(action);
+            TreeNode node = queue.poll();
+            if (node == null) {
+                return false;
+            }
+            int childCount = node.getChildCount();
+            for (int i = 0; i < childCount; i++) {
+                queue.add(node.getChildAt(i));
+            }
+            action.accept(node);
+            return true;
+        }
+    }
+}
@@ -1,34 +1,103 @@
 package uk.cloudengine.swing.collectionTreeModel;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.NoSuchElementException;
-import java.util.Stack;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.swing.JTree;
 import javax.swing.tree.TreeNode;
 
 public class TreeUtils {
 
+    /**
+     * The order in which {@link TreeUtils#stream(TreeNode, Order)} visits the
+     * nodes of a tree.
+     */
+    public enum Order {
+        /** Each node before its children, as {@link PreOrderEnumeration}. */
+        PRE_ORDER,
+        /** Each node after its children. */
+        POST_ORDER,
+        /** Level by level, each level from first child to last. */
+        BREADTH_FIRST
+    }
+
     public static String toString(TreeNode treeNode) {
         StringBuilder sb = new StringBuilder();
+        try {
+            write(treeNode, sb);
+        } catch (IOException e) {
+            // StringBuilder never throws
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the same text as {@link #toString(TreeNode)} to the given
+     * {@link Appendable}, one node at a time, so that very large trees may be
+     * streamed to a {@link java.io.Writer} without building the whole text in
+     * memory.
+     * <p>
+     * The depth of each node is tracked during the pre-order walk rather than
+     * recomputed from its ancestors, so the cost is linear in the size of the
+     * output.
+     * @param treeNode the root of the tree or subtree to write
+     * @param out where to write the text
+     * @throws IOException if the {@link Appendable} throws
+     */
+    public static void write(TreeNode treeNode, Appendable out)
+            throws IOException {
+        checkNotNull(treeNode);
+        checkNotNull(out);
 
-        Enumeration<TreeNode> en = new PreOrderEnumeration<>(treeNode);
+        int baseLevel = getLevel(treeNode);
+        Deque<Enumeration<?>> childrenEnums = new ArrayDeque<>();
 
-        while (en.hasMoreElements()) {
-            TreeNode node = en.nextElement();
+        writeNode(treeNode, baseLevel, out);
+        childrenEnums.push(treeNode.children());
+        while (!childrenEnums.isEmpty()) {
+            Enumeration<?> children = childrenEnums.peek();
 
-            for (int indents = 0; indents < getLevel(node); indents++) {
-                sb.append("  ");
+            if (children.hasMoreElements()) {
+                TreeNode child = (TreeNode) children.nextElement();
+                writeNode(child, baseLevel + childrenEnums.size(), out);
+                childrenEnums.push(child.children());
+            } else {
+                childrenEnums.pop();
             }
-            sb.append((node.isLeaf() ? "- " : "+ "));
-            sb.append(node.toString());
-            sb.append("\n");
         }
+    }
 
-        return sb.toString();
+    private static void writeNode(TreeNode node, int level, Appendable out)
+            throws IOException {
+        for (int indents = 0; indents < level; indents++) {
+            out.append("  ");
+        }
+        out.append(node.isLeaf() ? "- " : "+ ");
+        out.append(node.toString());
+        out.append('\n');
     }
 
+    /**
+     * Returns the number of ancestors of the given node. An
+     * {@link ImmutableTreeNode} answers this from its cached level; other
+     * nodes are walked to the root.
+     */
     public static final int getLevel(TreeNode treeNode) {
+        if (treeNode instanceof ImmutableTreeNode) {
+            return ((ImmutableTreeNode) treeNode).getLevel();
+        }
+
         int count = -1;
         TreeNode current = treeNode;
         do {
@@ -43,6 +112,50 @@ public class TreeUtils {
         return new PreOrderEnumeration<>(treeNode);
     }
 
+    /**
+     * Returns a sequential stream of the given node and its descendants in the
+     * given order. The stream is backed by a splittable {@link Spliterator},
+     * so large trees may be searched and aggregated with
+     * {@link Stream#parallel()}; the depth first orders split by subtree and
+     * the breadth first order in batches.
+     * <p>
+     * The tree must not be modified while the stream is in use.
+     * @param treeNode the root of the tree or subtree to stream
+     * @param order the order in which to visit the nodes
+     * @return a stream of the nodes
+     */
+    public static Stream<TreeNode> stream(TreeNode treeNode, Order order) {
+        checkNotNull(treeNode);
+        checkNotNull(order);
+        return StreamSupport.stream(spliterator(treeNode, order), false);
+    }
+
+    /**
+     * Returns a sequential stream of the leaves under the given node, in pre
+     * order. The stream may be made parallel as for
+     * {@link #stream(TreeNode, Order)}.
+     * @param treeNode the root of the tree or subtree to stream
+     * @return a stream of the leaf nodes
+     */
+    public static Stream<TreeNode> leaves(TreeNode treeNode) {
+        return stream(treeNode, Order.PRE_ORDER).filter(TreeNode::isLeaf);
+    }
+
+    private static Spliterator<TreeNode> spliterator(TreeNode treeNode,
+            Order order) {
+        switch (order) {
+        case PRE_ORDER:
+            return new TreeSpliterators.PreOrder(treeNode);
+        case POST_ORDER:
+            return new TreeSpliterators.PostOrder(treeNode);
+        case BREADTH_FIRST:
+            return new TreeSpliterators.BreadthFirst(treeNode);
+        default:
+            throw new IllegalArgumentException("Unknown order ('" + order
+                    + "').");
+        }
+    }
+
     public static void expandAll(JTree jTree) {
         for (int i = 0; i < jTree.getRowCount(); i++) {
             jTree.expandRow(i);
@@ -50,57 +163,31 @@ public class TreeUtils {
     }
 
     /**
-     * Lifted and generalised from
-     * {@link java.swing.tree.DefaultMutableTreeNode}
+     * Enumerates a node and its descendants in pre order. This is a view of
+     * the {@link Order#PRE_ORDER} traversal, which walks the tree iteratively
+     * without an {@link Enumeration} per node.
      */
     public static class PreOrderEnumeration<T extends TreeNode> implements
             Enumeration<T> {
 
-        private T next;
-        private Stack<Enumeration<T>> childrenEnums = new Stack<>();
+        private final Iterator<TreeNode> nodes;
 
-        @SuppressWarnings("unchecked")
         PreOrderEnumeration(T node) {
-            next = node;
-            childrenEnums.push(node.children());
+            nodes = Spliterators.iterator(new TreeSpliterators.PreOrder(node));
         }
 
         @Override
         public boolean hasMoreElements() {
-            return next != null;
+            return nodes.hasNext();
         }
 
+        @SuppressWarnings("unchecked")
         @Override
         public T nextElement() {
-            if (next == null) {
+            if (!nodes.hasNext()) {
                 throw new NoSuchElementException("No more elements left.");
             }
-            T current = next;
-            Enumeration<T> children = childrenEnums.peek();
-            next = traverse(children);
-
-            return current;
-        }
-
-        @SuppressWarnings("unchecked")
-        private T traverse(Enumeration<T> children) {
-            // If more children are available step down.
-            if (children.hasMoreElements()) {
-                T child = children.nextElement();
-                childrenEnums.push(child.children());
-                return child;
-            }
-
-            // If no children are left, we return to a higher level.
-            childrenEnums.pop();
-
-            // If there are no more levels left, there is no next
-            // element to return.
-            if (childrenEnums.isEmpty()) {
-                return null;
-            } else {
-                return traverse(childrenEnums.peek());
-            }
+            return (T) nodes.next();
         }
     }
 }
@@ -0,0 +1,48 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * An interning dictionary for the user objects of one hierarchy level. Equal
+ * values are mapped to a single canonical instance, so a value that repeats
+ * across the tree, such as the same author under many publishers, is only
+ * held once. The dictionary also gives the number of distinct values seen at
+ * its level.
+ * </p>
+ * <p>
+ * A ValueDictionary is safe to use from concurrent builds.
+ * </p>
+ * @see Hierarchy#setInterned(Object, boolean)
+ * @see CollectionTreeModel#getValueDictionary(Object)
+ */
+public class ValueDictionary {
+
+    private final ConcurrentMap<Object, Object> values =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Returns the canonical instance equal to the given value, making the
+     * value canonical if no equal value has been seen before.
+     * @param value the value to intern
+     * @return the canonical instance
+     */
+    public Object intern(Object value) {
+        Object canonical = values.putIfAbsent(checkNotNull(value), value);
+        return (canonical == null) ? value : canonical;
+    }
+
+    /**
+     * @return the number of distinct values in the dictionary
+     */
+    public int cardinality() {
+        return values.size();
+    }
+
+    public boolean contains(Object value) {
+        return values.containsKey(value);
+    }
+}
@@ -1,15 +1,34 @@
 package uk.cloudengine.swing.collectionTreeModel;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.swing.SwingUtilities;
+import javax.swing.event.TreeModelEvent;
 import javax.swing.tree.TreeNode;
 
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.Lists;
 
 import uk.cloudengine.swing.collectionTreeModel.CollectionTreeModel;
@@ -63,10 +82,783 @@ public class CollectionTreeModelTest {
         assertEquals(expectedString, TreeUtils.toString((TreeNode) testModel.getRoot()));
     }
 
+    @Test
+    public void build_KeyComparisonsScaleLinearlyWithGroupFanout() {
+        long comparisonsFor1000 = countKeyComparisonsForBuild(1000);
+        long comparisonsFor8000 = countKeyComparisonsForBuild(8000);
+
+        // A scan of the children per record would be quadratic here; every
+        // author is distinct so a publisher has thousands of author groups.
+        assertTrue(comparisonsFor1000 <= 8 * 1000);
+        assertTrue(comparisonsFor8000 <= 8 * 8000);
+    }
+
+    @Test
+    public void build_GivenChildIndexNotRetained() {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        String expectedString = TreeUtils.toString((TreeNode) testModel
+                .getRoot());
+
+        testModel = new CollectionTreeModel.Builder<>(testBookList)
+                .addNode(b -> b.publisher, "Publisher")
+                .addNode(b -> b.author, "Author")
+                .addNode(b -> b.title, "Title")
+                .retainChildIndex(false).build();
+
+        assertFalse(((ImmutableTreeNode) testModel.getRoot()).hasChildIndex());
+        assertEquals(expectedString,
+                TreeUtils.toString((TreeNode) testModel.getRoot()));
+    }
+
+    @Test
+    public void build_GivenParallelBuildThenTreeMatchesSequentialBuild() {
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            books.add(new Book("Publisher" + (i * 7 % 13),
+                    "Author" + (i * 31 % 997), "Title" + i));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CollectionTreeModel<Book> sequentialModel = new CollectionTreeModel.Builder<>(
+                    books).addNode(b -> b.publisher).addNode(b -> b.author)
+                    .addNode(b -> b.title).build();
+            CollectionTreeModel<Book> parallelModel = new CollectionTreeModel.Builder<>(
+                    books).addNode(b -> b.publisher).addNode(b -> b.author)
+                    .addNode(b -> b.title).parallel(pool).build();
+
+            assertEquals(TreeUtils.toString((TreeNode) sequentialModel.getRoot()),
+                    TreeUtils.toString((TreeNode) parallelModel.getRoot()));
+
+            sequentialModel.getHierarchy().swapNodes(0, 1);
+            sequentialModel.rebuild();
+            parallelModel.getHierarchy().swapNodes(0, 1);
+            parallelModel.rebuild();
+
+            assertEquals(TreeUtils.toString((TreeNode) sequentialModel.getRoot()),
+                    TreeUtils.toString((TreeNode) parallelModel.getRoot()));
+
+            CollectionTreeModel<Book> cachedParallelModel = new CollectionTreeModel.Builder<>(
+                    books).addNode(b -> b.author).addNode(b -> b.publisher)
+                    .addNode(b -> b.title).cacheKeys()
+                    .parallel(pool).build();
+
+            assertEquals(TreeUtils.toString((TreeNode) sequentialModel.getRoot()),
+                    TreeUtils.toString((TreeNode) cachedParallelModel.getRoot()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void addRecords_GivenNewPublisher() {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+
+        testModel.addRecords(Lists.newArrayList(new Book("Gollancz",
+                "Alastair Reynolds", "Revelation Space")));
+
+        TreeModelEvent event = recorder.getOnlyEvent("inserted");
+        assertEquals("[root]", event.getTreePath().toString());
+        assertArrayEquals(new int[] { 6 }, event.getChildIndices());
+        assertEquals("  + Gollancz\n" +
+                "    + Alastair Reynolds\n" +
+                "      - Revelation Space\n",
+                TreeUtils.toString((TreeNode) event.getChildren()[0]));
+    }
+
+    @Test
+    public void addRecords_GivenExistingAuthor() {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+
+        testModel.addRecords(Lists.newArrayList(new Book("Orbit",
+                "Iain M.Banks", "Excession")));
+
+        TreeModelEvent event = recorder.getOnlyEvent("inserted");
+        assertEquals("[root, Orbit, Iain M.Banks]",
+                event.getTreePath().toString());
+        assertArrayEquals(new int[] { 2 }, event.getChildIndices());
+    }
+
+    @Test
+    public void removeRecords_GivenOnlyBookOfPublisher() {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+
+        testModel.removeRecords(Lists.newArrayList(testBookList.get(2)));
+
+        TreeModelEvent event = recorder.getOnlyEvent("removed");
+        assertEquals("[root]", event.getTreePath().toString());
+        assertArrayEquals(new int[] { 1 }, event.getChildIndices());
+        assertEquals("Penguin", event.getChildren()[0].toString());
+        assertEquals(5, testModel.getChildCount(testModel.getRoot()));
+    }
+
+    @Test(timeout = 10000)
+    public void removeRecords_GivenManyRecordsInOneGroup() {
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < 40000; i++) {
+            books.add(new Book("Orbit", "Iain M.Banks", "Book " + i));
+        }
+        testModel = new CollectionTreeModel.Builder<>(new ArrayList<Book>())
+                .addNode(b -> b.publisher)
+                .addNode(b -> b.title).build();
+        testModel.addRecords(books);
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+
+        testModel.removeRecords(books.subList(0, 30000));
+
+        TreeModelEvent event = recorder.getOnlyEvent("removed");
+        assertEquals(30000, event.getChildIndices().length);
+        Object orbit = testModel.getChild(testModel.getRoot(), 0);
+        assertEquals(10000, testModel.getChildCount(orbit));
+        assertEquals("Book 30000", testModel.getChild(orbit, 0).toString());
+    }
+
+    @Test
+    public void addRecords_GivenSeveralRecordsThenOneEventPerParent() {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+
+        testModel.addRecords(Lists.newArrayList(
+                new Book("Gollancz", "Alastair Reynolds", "Revelation Space"),
+                new Book("Gollancz", "Alastair Reynolds", "Chasm City"),
+                new Book("Tor", "Cory Doctorow", "Makers")));
+
+        TreeModelEvent event = recorder.getOnlyEvent("inserted");
+        assertEquals("[root]", event.getTreePath().toString());
+        assertArrayEquals(new int[] { 6, 7 }, event.getChildIndices());
+        assertEquals("  + Gollancz\n" +
+                "    + Alastair Reynolds\n" +
+                "      - Revelation Space\n" +
+                "      - Chasm City\n",
+                TreeUtils.toString((TreeNode) event.getChildren()[0]));
+    }
+
+    @Test
+    public void endBatch_GivenRemovalsAndInsertionsOnSameParent() {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+
+        testModel.beginBatch();
+        testModel.removeRecords(Lists.newArrayList(testBookList.get(2)));
+        testModel.addRecords(Lists.newArrayList(new Book("Gollancz",
+                "Alastair Reynolds", "Revelation Space")));
+        testModel.removeRecords(testBookList.subList(4, 6));
+        assertEquals(Collections.emptyList(), recorder.types);
+        testModel.endBatch();
+
+        assertEquals(Lists.newArrayList("removed", "inserted"),
+                recorder.types);
+        TreeModelEvent removed = recorder.events.get(0);
+        assertArrayEquals(new int[] { 1, 3 }, removed.getChildIndices());
+        assertEquals("[Penguin, Putnam]",
+                Arrays.toString(removed.getChildren()));
+        TreeModelEvent inserted = recorder.events.get(1);
+        assertArrayEquals(new int[] { 4 }, inserted.getChildIndices());
+        assertEquals(inserted.getChildren()[0], testModel.getChild(
+                testModel.getRoot(), 4));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void endBatch_GivenNoBatchInProgress() {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+
+        testModel.endBatch();
+    }
+
+    @Test
+    public void getIndexOfChild_GivenSiblingsRemovedAndAdded() {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        testModel.removeRecords(Lists.newArrayList(testBookList.get(2)));
+        testModel.addRecords(Lists.newArrayList(new Book("Gollancz",
+                "Alastair Reynolds", "Revelation Space")));
+
+        Object root = testModel.getRoot();
+        for (int i = 0; i < testModel.getChildCount(root); i++) {
+            Object child = testModel.getChild(root, i);
+            assertEquals(i, testModel.getIndexOfChild(root, child));
+        }
+        Object removed = testModel.getChild(testModel.getRoot(), 0);
+        testModel.removeRecords(Lists.newArrayList(testBookList.get(0),
+                testBookList.get(1)));
+        assertEquals(-1, testModel.getIndexOfChild(root, removed));
+        assertEquals(0, testModel.getIndexOfChild(root,
+                testModel.getChild(root, 0)));
+    }
+
+    @Test
+    public void write_GivenNewPublisherAddedThenLevelsAndTextAreConsistent()
+            throws IOException {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        testModel.addRecords(Lists.newArrayList(new Book("Gollancz",
+                "Alastair Reynolds", "Revelation Space")));
+
+        Enumeration<TreeNode> en = TreeUtils.getPreOrderEnumeration(
+                (TreeNode) testModel.getRoot());
+        while (en.hasMoreElements()) {
+            ImmutableTreeNode node = (ImmutableTreeNode) en.nextElement();
+            TreeNode parent = node.getParent();
+            assertEquals(parent == null ? 0
+                    : ((ImmutableTreeNode) parent).getLevel() + 1,
+                    node.getLevel());
+        }
+
+        StringWriter writer = new StringWriter();
+        TreeUtils.write((TreeNode) testModel.getRoot(), writer);
+        assertEquals(TreeUtils.toString((TreeNode) testModel.getRoot()),
+                writer.toString());
+        assertTrue(writer.toString().endsWith("  + Gollancz\n" +
+                "    + Alastair Reynolds\n" +
+                "      - Revelation Space\n"));
+    }
+
+    @Test
+    public void getAggregate_GivenRecordsAddedAndRemoved() {
+        testModel = new CollectionTreeModel.Builder<>(testBookList)
+                .addNode(b -> b.author, "Author")
+                .addNode(b -> b.title, "Title")
+                .aggregate("titles", Aggregate.count())
+                .aggregate("letters", Aggregate.sum(b -> b.title.length()))
+                .aggregate("longest", Aggregate.max(b -> b.title.length()))
+                .build();
+        Object root = testModel.getRoot();
+        Object dick = testModel.getChild(root, 2);
+
+        assertEquals(9, testModel.getAggregate(root, "titles"), 0);
+        assertEquals("Philip K.Dick", dick.toString());
+        assertEquals(3, testModel.getAggregate(dick, "titles"), 0);
+        assertEquals(26 + 36 + 4, testModel.getAggregate(dick, "letters"), 0);
+        assertEquals(36, testModel.getAggregate(dick, "longest"), 0);
+
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+        testModel.addRecords(Lists.newArrayList(new Book("Gollancz",
+                "Philip K.Dick", "Valis")));
+        testModel.removeRecords(Lists.newArrayList(testBookList.get(7)));
+
+        assertEquals(9, testModel.getAggregate(root, "titles"), 0);
+        assertEquals(3, testModel.getAggregate(dick, "titles"), 0);
+        assertEquals(26 + 5 + 4, testModel.getAggregate(dick, "letters"), 0);
+        assertEquals(26, testModel.getAggregate(dick, "longest"), 0);
+        assertTrue(recorder.types.contains("changed"));
+    }
+
+    @Test
+    public void build_GivenFlyweightLeavesThenSameTreeAndEqualHandles() {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        CollectionTreeModel<Book> flyweightModel = givenFlyweightTestModel();
+
+        assertEquals(TreeUtils.toString((TreeNode) testModel.getRoot()),
+                TreeUtils.toString((TreeNode) flyweightModel.getRoot()));
+
+        Object orbit = flyweightModel.getChild(flyweightModel.getRoot(), 0);
+        Object banks = flyweightModel.getChild(orbit, 0);
+        Object leaf = flyweightModel.getChild(banks, 1);
+        assertEquals("Use Of Weapons", leaf.toString());
+        assertEquals(leaf, flyweightModel.getChild(banks, 1));
+        assertEquals(1, flyweightModel.getIndexOfChild(banks, leaf));
+        assertSame(banks, ((TreeNode) leaf).getParent());
+        assertSame(testBookList.get(1), ((RecordTreeNode<?>) leaf)
+                .getRecord());
+    }
+
+    @Test
+    public void addRecords_GivenFlyweightLeavesThenMatchesNodeLeaves() {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        CollectionTreeModel<Book> flyweightModel = givenFlyweightTestModel();
+        List<Book> added = Lists.newArrayList(
+                new Book("Orbit", "Iain M.Banks", "Excession"),
+                new Book("Gollancz", "Alastair Reynolds", "Revelation Space"));
+
+        List<CollectionTreeModel<Book>> models = new ArrayList<>();
+        models.add(testModel);
+        models.add(flyweightModel);
+
+        for (CollectionTreeModel<Book> model : models) {
+            model.addRecords(added);
+            model.removeRecords(testBookList.subList(0, 2));
+            model.updateRecord(testBookList.get(8), new Book("Doubleday",
+                    "Philip K.Dick", "Ubik (revised)"));
+        }
+
+        assertEquals(TreeUtils.toString((TreeNode) testModel.getRoot()),
+                TreeUtils.toString((TreeNode) flyweightModel.getRoot()));
+    }
+
+    @Test
+    public void build_GivenMemoizedProviderThenEachKeyLookedUpOnce() {
+        AtomicInteger lookups = new AtomicInteger();
+        testModel = new CollectionTreeModel.Builder<>(testBookList)
+                .addNode(b -> b.author, author -> {
+                    lookups.incrementAndGet();
+                    return author.toUpperCase();
+                }, "Author", 100)
+                .addNode(b -> b.title, "Title").build();
+        testModel.rebuild();
+
+        assertEquals("PHILIP K.DICK",
+                testModel.getChild(testModel.getRoot(), 2).toString());
+        assertEquals(3, lookups.get());
+        CacheStats stats = testModel.getHierarchy().getCacheStats("Author")
+                .get();
+        assertEquals(3, stats.missCount());
+        assertEquals(2 * testBookList.size() - 3, stats.hitCount());
+        assertFalse(testModel.getHierarchy().getCacheStats("Title")
+                .isPresent());
+    }
+
+    @Test
+    public void build_GivenStreamThenRebuildRegroupsRetainedRecords() {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        CollectionTreeModel<Book> streamedModel = CollectionTreeModel.Builder
+                .fromStream(testBookList.stream())
+                .addNode(b -> b.publisher, "Publisher")
+                .addNode(b -> b.author, "Author")
+                .addNode(b -> b.title, "Title").build();
+
+        assertEquals(TreeUtils.toString((TreeNode) testModel.getRoot()),
+                TreeUtils.toString((TreeNode) streamedModel.getRoot()));
+
+        testModel.getHierarchy().swapNodes("Publisher", "Author");
+        testModel.rebuild();
+        streamedModel.getHierarchy().swapNodes("Publisher", "Author");
+        streamedModel.rebuild();
+
+        assertEquals(TreeUtils.toString((TreeNode) testModel.getRoot()),
+                TreeUtils.toString((TreeNode) streamedModel.getRoot()));
+    }
+
+    @Test
+    public void rebuild_GivenIteratorAndRecordsNotRetained() {
+        thrown.expect(IllegalStateException.class);
+        thrown.expectMessage("Records were not retained");
+
+        testModel = CollectionTreeModel.Builder
+                .fromIterator(testBookList.iterator())
+                .addNode(b -> b.author, "Author")
+                .addNode(b -> b.title, "Title")
+                .retainRecords(false).build();
+        Object dick = testModel.getChild(testModel.getRoot(), 2);
+        assertEquals("Philip K.Dick", dick.toString());
+        assertFalse(testModel.getChild(dick, 0) instanceof RecordTreeNode);
+
+        testModel.rebuild();
+    }
+
+    @Test
+    public void build_GivenLevelComparatorsThenChildrenSorted() {
+        testModel = new CollectionTreeModel.Builder<>(testBookList)
+                .addNode(b -> b.author, "Author",
+                        Comparator.<String> naturalOrder())
+                .addNode(b -> b.title, "Title",
+                        Comparator.<String> reverseOrder()).build();
+
+        String expectedString = "+ root\n" +
+                "  + Iain M.Banks\n" +
+                "    - Use Of Weapons\n" +
+                "    - The Player Of Games\n" +
+                "  + Philip K.Dick\n" +
+                "    - Ubik\n" +
+                "    - The Man in the High Castle\n" +
+                "    - Do Androids Dream of Electric Sheep?\n" +
+                "  + William Gibson\n" +
+                "    - Virtual Light\n" +
+                "    - Pattern Recognition\n" +
+                "    - Neuromancer\n" +
+                "    - Idoru\n";
+        assertEquals(expectedString,
+                TreeUtils.toString((TreeNode) testModel.getRoot()));
+    }
+
+    @Test
+    public void addRecords_GivenLevelComparatorThenInsertedInOrder() {
+        testModel = new CollectionTreeModel.Builder<>(testBookList)
+                .addNode(b -> b.author, "Author",
+                        Comparator.<String> naturalOrder())
+                .addNode(b -> b.title, "Title").build();
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+
+        testModel.addRecords(Lists.newArrayList(new Book("Gollancz",
+                "Alastair Reynolds", "Revelation Space")));
+
+        TreeModelEvent event = recorder.getOnlyEvent("inserted");
+        assertArrayEquals(new int[] { 0 }, event.getChildIndices());
+        assertEquals("Alastair Reynolds",
+                testModel.getChild(testModel.getRoot(), 0).toString());
+    }
+
+    @Test
+    public void setComparator_GivenBuiltModelThenChildrenResortedInPlace() {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        Object orbit = testModel.getChild(testModel.getRoot(), 0);
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+
+        testModel.setComparator("Publisher", Comparator.<String> naturalOrder());
+
+        TreeModelEvent event = recorder.getOnlyEvent("structureChanged");
+        assertEquals("[root]", event.getTreePath().toString());
+        Enumeration<? extends TreeNode> publishers =
+                ((TreeNode) testModel.getRoot()).children();
+        assertEquals("[Ace, Doubleday, Orbit, Penguin, Putnam, Viking Press]",
+                Collections.list(publishers).toString());
+        assertSame(orbit, testModel.getChild(testModel.getRoot(), 2));
+    }
+
+    @Test
+    public void getPathFor_GivenIndexedRecords() {
+        testModel = new CollectionTreeModel.Builder<>(testBookList)
+                .addNode(b -> b.publisher, "Publisher")
+                .addNode(b -> b.author, "Author")
+                .addNode(b -> b.title, "Title")
+                .indexRecords().build();
+        Book added = new Book("Gollancz", "Alastair Reynolds",
+                "Revelation Space");
+        testModel.addRecords(Lists.newArrayList(added));
+        testModel.removeRecords(Lists.newArrayList(testBookList.get(0)));
+
+        assertEquals("[root, Putnam, Philip K.Dick, The Man in the High Castle]",
+                testModel.getPathFor(testBookList.get(5)).toString());
+        assertEquals("[root, Gollancz, Alastair Reynolds, Revelation Space]",
+                testModel.getPathFor(added).toString());
+        assertEquals(null, testModel.getPathFor(testBookList.get(0)));
+        assertEquals(null, testModel.getPathFor(new Book("Orbit",
+                "Iain M.Banks", "Use Of Weapons")));
+    }
+
+    @Test
+    public void getPathFor_GivenRecordsNotIndexed() {
+        thrown.expect(IllegalStateException.class);
+        thrown.expectMessage("Records are not indexed.");
+
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        testModel.getPathFor(testBookList.get(0));
+    }
+
+    @Test
+    public void updateRecord_GivenTitleChanged() {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+
+        Book updatedBook = new Book("Orbit", "Iain M.Banks", "Use of Weapons");
+        testModel.updateRecord(testBookList.get(1), updatedBook);
+
+        TreeModelEvent event = recorder.getOnlyEvent("changed");
+        assertEquals("[root, Orbit, Iain M.Banks]",
+                event.getTreePath().toString());
+        assertArrayEquals(new int[] { 1 }, event.getChildIndices());
+        assertSame(updatedBook,
+                ((RecordTreeNode<?>) event.getChildren()[0]).getRecord());
+    }
+
+    @Test
+    public void updateRecord_GivenPublisherChanged() {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+
+        testModel.updateRecord(testBookList.get(2), new Book("Ace",
+                "William Gibson", "Virtual Light"));
+
+        assertEquals(Lists.newArrayList("removed", "inserted"),
+                recorder.types);
+        assertEquals("  + Ace\n" +
+                "    + William Gibson\n" +
+                "      - Neuromancer\n" +
+                "      - Virtual Light\n",
+                TreeUtils.toString((TreeNode) testModel.getChild(
+                        testModel.getRoot(), 3)));
+    }
+
+    @Test
+    public void build_GivenLazyThenChildrenGroupedOnFirstAccess() {
+        AtomicInteger authorCalls = new AtomicInteger();
+        testModel = new CollectionTreeModel.Builder<>(testBookList)
+                .addNode(b -> b.publisher, "Publisher")
+                .addNode(b -> {
+                    authorCalls.incrementAndGet();
+                    return b.author;
+                }, "Author")
+                .addNode(b -> b.title, "Title").lazy().build();
+
+        assertEquals(0, authorCalls.get());
+        assertEquals(6, testModel.getChildCount(testModel.getRoot()));
+        assertFalse(testModel.isLeaf(testModel.getChild(testModel.getRoot(), 0)));
+        assertEquals(0, authorCalls.get());
+
+        // Expanding Orbit groups just its two books.
+        Object orbit = testModel.getChild(testModel.getRoot(), 0);
+        assertEquals(1, testModel.getChildCount(orbit));
+        assertEquals(2, authorCalls.get());
+
+        String lazyString = TreeUtils.toString((TreeNode) testModel.getRoot());
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        assertEquals(TreeUtils.toString((TreeNode) testModel.getRoot()),
+                lazyString);
+    }
+
+    @Test
+    public void rebuild_GivenKeysCachedThenProvidersNotInvokedAgain() {
+        AtomicInteger providerCalls = new AtomicInteger();
+        testModel = new CollectionTreeModel.Builder<>(testBookList)
+                .addNode(b -> counted(providerCalls, b.publisher), "Publisher")
+                .addNode(b -> counted(providerCalls, b.author), "Author")
+                .addNode(b -> counted(providerCalls, b.title), "Title")
+                .cacheKeys().build();
+        assertEquals(27, providerCalls.get());
+
+        testModel.getHierarchy().swapNodes("Publisher", "Author");
+        testModel.rebuild();
+        assertEquals(27, providerCalls.get());
+
+        String cachedString = TreeUtils.toString((TreeNode) testModel.getRoot());
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        testModel.getHierarchy().swapNodes("Publisher", "Author");
+        testModel.rebuild();
+        assertEquals(TreeUtils.toString((TreeNode) testModel.getRoot()),
+                cachedString);
+    }
+
+    @Test
+    public void rebuild_GivenKeyCacheInvalidated() {
+        AtomicInteger providerCalls = new AtomicInteger();
+        testModel = new CollectionTreeModel.Builder<>(testBookList)
+                .addNode(b -> counted(providerCalls, b.publisher))
+                .addNode(b -> counted(providerCalls, b.title))
+                .cacheKeys().build();
+
+        testModel.invalidateKeyCache();
+        testModel.rebuild();
+        assertEquals(36, providerCalls.get());
+    }
+
+    @Test
+    public void build_GivenInternedValuesThenEqualUserObjectsShareInstance() {
+        List<Book> books = Lists.newArrayList(
+                new Book("Penguin", new String("William Gibson"), "Virtual Light"),
+                new Book("Putnam", new String("William Gibson"), "Pattern Recognition"),
+                new Book("Putnam", "Philip K.Dick", "The Man in the High Castle"));
+        CollectionTreeModel<Book> model = new CollectionTreeModel.Builder<>(books)
+                .addNode(b -> b.publisher, "Publisher")
+                .addNode(b -> b.author, "Author")
+                .addNode(b -> b.title, "Title").internValues().build();
+
+        Object root = model.getRoot();
+        Object penguinGibson = ((ImmutableTreeNode) model.getChild(
+                model.getChild(root, 0), 0)).getUserObject();
+        Object putnamGibson = ((ImmutableTreeNode) model.getChild(
+                model.getChild(root, 1), 0)).getUserObject();
+
+        assertSame(penguinGibson, putnamGibson);
+        assertEquals(2, model.getValueDictionary("Author").get().cardinality());
+        assertEquals(2, model.getValueDictionary("Publisher").get()
+                .cardinality());
+    }
+
+    @Test
+    public void rebuildAsync_GivenAuthorNodeHasBeenSwappedWithPublisherNode()
+            throws Exception {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+        testModel.getHierarchy().swapNodes("Publisher", "Author");
+
+        testModel.rebuildAsync(Runnable::run).get(5, TimeUnit.SECONDS);
+
+        recorder.getOnlyEvent("structureChanged");
+        assertEquals("Iain M.Banks",
+                testModel.getChild(testModel.getRoot(), 0).toString());
+    }
+
+    @Test
+    public void rebuildAsync_GivenNewerRebuildThenEarlierIsCancelled()
+            throws Exception {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+        List<Runnable> queuedBuilds = new ArrayList<>();
+
+        CompletableFuture<Void> first = testModel.rebuildAsync(queuedBuilds::add);
+        testModel.getHierarchy().swapNodes("Publisher", "Author");
+        CompletableFuture<Void> second = testModel.rebuildAsync(queuedBuilds::add);
+        assertTrue(first.isCancelled());
+
+        queuedBuilds.forEach(Runnable::run);
+        second.get(5, TimeUnit.SECONDS);
+        SwingUtilities.invokeAndWait(() -> {});
+
+        recorder.getOnlyEvent("structureChanged");
+        assertEquals("Iain M.Banks",
+                testModel.getChild(testModel.getRoot(), 0).toString());
+    }
+
+    @Test
+    public void rebuildAsync_GivenExecutorRejectsBuildThenFailedFuture()
+            throws Exception {
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+        testModel.getHierarchy().swapNodes("Publisher", "Author");
+
+        CompletableFuture<Void> rejected = testModel.rebuildAsync(build -> {
+            throw new RejectedExecutionException("Shut down.");
+        });
+
+        assertTrue(rejected.isCompletedExceptionally());
+        assertTrue(recorder.types.isEmpty());
+        testModel.rebuildAsync(Runnable::run).get(5, TimeUnit.SECONDS);
+        assertEquals("Iain M.Banks",
+                testModel.getChild(testModel.getRoot(), 0).toString());
+    }
+
+    @Test
+    public void rebuild_GivenDiffRebuildAndBookAddedToSource() {
+        List<Book> books = Lists.newArrayList(testBookList);
+        testModel = new CollectionTreeModel.Builder<>(books)
+                .addNode(b -> b.publisher, "Publisher")
+                .addNode(b -> b.author, "Author")
+                .addNode(b -> b.title, "Title").diffRebuild().build();
+        Object root = testModel.getRoot();
+        Object orbit = testModel.getChild(root, 0);
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+
+        books.add(new Book("Orbit", "Iain M.Banks", "Excession"));
+        books.remove(2);
+        testModel.rebuild();
+
+        assertEquals(Lists.newArrayList("removed", "inserted"),
+                recorder.types);
+        assertEquals("[root]", recorder.events.get(0).getTreePath().toString());
+        assertArrayEquals(new int[] { 1 },
+                recorder.events.get(0).getChildIndices());
+        assertEquals("[root, Orbit, Iain M.Banks]",
+                recorder.events.get(1).getTreePath().toString());
+        assertArrayEquals(new int[] { 2 },
+                recorder.events.get(1).getChildIndices());
+        assertSame(root, testModel.getRoot());
+        assertSame(orbit, testModel.getChild(root, 0));
+    }
+
+    @Test
+    public void rebuild_GivenDiffRebuildAndRecordReplacedByEqualOne() {
+        List<Book> books = Lists.newArrayList(testBookList);
+        testModel = new CollectionTreeModel.Builder<>(books)
+                .addNode(b -> b.publisher)
+                .addNode(b -> b.title).diffRebuild().build();
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+
+        Book reloaded = new Book("Penguin", "William Gibson", "Virtual Light");
+        books.set(2, reloaded);
+        testModel.rebuild();
+
+        TreeModelEvent event = recorder.getOnlyEvent("changed");
+        assertEquals("[root, Penguin]", event.getTreePath().toString());
+        assertSame(reloaded,
+                ((RecordTreeNode<?>) event.getChildren()[0]).getRecord());
+    }
+
+    @Test
+    public void rebuild_GivenDiffRebuildAndAggregateChangedThenGroupChanged() {
+        List<Book> books = Lists.newArrayList(testBookList);
+        testModel = new CollectionTreeModel.Builder<>(books)
+                .addNode(b -> b.publisher)
+                .addNode(b -> b.title)
+                .aggregate("letters", Aggregate.sum(b -> b.author.length()))
+                .diffRebuild().build();
+        Object penguin = testModel.getChild(testModel.getRoot(), 1);
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+
+        books.set(2, new Book("Penguin", "W.Gibson", "Virtual Light"));
+        testModel.rebuild();
+
+        assertEquals(8.0, testModel.getAggregate(penguin, "letters"), 0.0);
+        List<String> paths = new ArrayList<>();
+        for (TreeModelEvent event : recorder.events) {
+            paths.add(event.getTreePath() + Arrays.toString(event
+                    .getChildIndices()));
+        }
+        assertEquals(Lists.newArrayList("changed", "changed", "changed"),
+                recorder.types);
+        assertEquals("[[root, Penguin][0], [root][1], [root]null]",
+                paths.toString());
+    }
+
+    @Test
+    public void rebuild_GivenDiffRebuildAndHierarchySwapped() {
+        testModel = new CollectionTreeModel.Builder<>(testBookList)
+                .addNode(b -> b.publisher, "Publisher")
+                .addNode(b -> b.author, "Author")
+                .addNode(b -> b.title, "Title").diffRebuild().build();
+        TreeModelEventRecorder recorder = givenRecorderListeningToTestModel();
+
+        testModel.getHierarchy().swapNodes("Publisher", "Author");
+        testModel.rebuild();
+
+        String diffedString = TreeUtils.toString((TreeNode) testModel.getRoot());
+        assertEquals(Lists.newArrayList("removed", "inserted"),
+                recorder.types);
+        givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle();
+        testModel.getHierarchy().swapNodes("Publisher", "Author");
+        testModel.rebuild();
+        assertEquals(TreeUtils.toString((TreeNode) testModel.getRoot()),
+                diffedString);
+    }
+
+    private static Object counted(AtomicInteger calls, Object userObject) {
+        calls.incrementAndGet();
+        return userObject;
+    }
+
+    private TreeModelEventRecorder givenRecorderListeningToTestModel() {
+        TreeModelEventRecorder recorder = new TreeModelEventRecorder();
+        testModel.addTreeModelListener(recorder);
+        return recorder;
+    }
+
+    private long countKeyComparisonsForBuild(int numberOfBooks) {
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < numberOfBooks; i++) {
+            books.add(new Book("Publisher" + (i % 10), "Author" + i,
+                    "Title" + i));
+        }
+        CountingKey.comparisons = 0;
+        new CollectionTreeModel.Builder<>(books)
+                .addNode(b -> new CountingKey(b.publisher))
+                .addNode(b -> new CountingKey(b.author))
+                .addNode(b -> b.title).build();
+        return CountingKey.comparisons;
+    }
+
     private void givenTestModelWithNamedNodesOrderedBy_PublisherAuthorTitle() {
         testModel = new CollectionTreeModel.Builder<>(testBookList)
                 .addNode(b -> b.publisher, "Publisher")
                 .addNode(b -> b.author, "Author")
                 .addNode(b -> b.title, "Title").build();
     }
+
+    private CollectionTreeModel<Book> givenFlyweightTestModel() {
+        return new CollectionTreeModel.Builder<>(testBookList)
+                .addNode(b -> b.publisher, "Publisher")
+                .addNode(b -> b.author, "Author")
+                .addNode(b -> b.title, "Title")
+                .flyweightLeaves().build();
+    }
+
+    private static class CountingKey {
+        static long comparisons;
+        final String key;
+
+        CountingKey(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            comparisons++;
+            return obj instanceof CountingKey
+                    && key.equals(((CountingKey) obj).key);
+        }
+
+        @Override
+        public int hashCode() {
+            comparisons++;
+            return key.hashCode();
+        }
+    }
 }
@@ -0,0 +1,174 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.swing.tree.TreeNode;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Lists;
+
+public class CompactTreeModelTest {
+
+    private final List<Book> testBookList = Lists.newArrayList(
+            new Book("Orbit", "Iain M.Banks", "The Player Of Games"),
+            new Book("Orbit", "Iain M.Banks", "Use Of Weapons"),
+            new Book("Penguin", "William Gibson", "Virtual Light"),
+            new Book("Putnam", "William Gibson", "Pattern Recognition"),
+            new Book("Putnam", "Philip K.Dick", "The Man in the High Castle"));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    private CollectionTreeModel<Book> collectionModel;
+    private CompactTreeModel compactModel;
+
+    @Before
+    public void beforeEachTest() {
+        collectionModel = new CollectionTreeModel.Builder<>(testBookList)
+                .addNode(b -> b.publisher)
+                .addNode(b -> b.author)
+                .addNode(b -> b.title).build();
+        compactModel = collectionModel.toCompactModel();
+    }
+
+    @Test
+    public void toCompactModel_GivenBuiltModelThenSameTree() {
+        assertEquals(13, compactModel.getNodeCount());
+        assertEquals(TreeUtils.toString((TreeNode) collectionModel.getRoot()),
+                TreeUtils.toString((TreeNode) compactModel.getRoot()));
+    }
+
+    @Test
+    public void buildCompact_GivenComparatorsThenSameTreeAsBuild() {
+        List<Book> books = Lists.newArrayList(testBookList);
+        books.add(new Book("Orbit", "Iain M.Banks", "Excession"));
+        books.add(new Book("Putnam", "William Gibson", "Pattern Recognition"));
+        CollectionTreeModel.Builder<Book> builder =
+                new CollectionTreeModel.Builder<>(books)
+                .addNode(b -> b.author, "Author",
+                        Comparator.<String> reverseOrder())
+                .addNode(b -> b.publisher)
+                .addNode(b -> b.title, "Title",
+                        Comparator.<String> naturalOrder());
+
+        CompactTreeModel built = builder.buildCompact();
+
+        assertEquals(TreeUtils.toString((TreeNode) builder.build().getRoot()),
+                TreeUtils.toString((TreeNode) built.getRoot()));
+        assertEquals(15, built.getNodeCount());
+    }
+
+    @Test
+    public void getIndexOfChild() {
+        Object putnam = compactModel.getChild(compactModel.getRoot(), 2);
+        Object dick = compactModel.getChild(putnam, 1);
+
+        assertEquals("Philip K.Dick", dick.toString());
+        assertEquals(1, compactModel.getIndexOfChild(putnam, dick));
+        assertEquals(-1, compactModel.getIndexOfChild(compactModel.getRoot(),
+                dick));
+    }
+
+    @Test
+    public void nodeHandlesForSameNodeAreEqual() {
+        Object orbit = compactModel.getChild(compactModel.getRoot(), 0);
+
+        assertEquals(orbit, compactModel.getChild(compactModel.getRoot(), 0));
+        assertEquals(compactModel.getRoot(), ((TreeNode) orbit).getParent());
+        assertFalse(compactModel.isLeaf(orbit));
+        assertTrue(compactModel.isLeaf(compactModel.getChild(
+                compactModel.getChild(orbit, 0), 0)));
+    }
+
+    @Test
+    public void load_GivenWrittenSnapshotThenSameTree() throws IOException {
+        CollectionTreeModel<Book> model = new CollectionTreeModel.Builder<>(
+                testBookList)
+                .addNode(b -> b.author)
+                .addNode(b -> b.title.length())
+                .addNode(b -> b.title).build();
+        Path file = folder.newFile().toPath();
+
+        model.writeSnapshot(file);
+        CompactTreeModel loaded = CompactTreeModel.load(file);
+
+        assertEquals(model.toCompactModel().getNodeCount(),
+                loaded.getNodeCount());
+        assertEquals(TreeUtils.toString((TreeNode) model.getRoot()),
+                TreeUtils.toString((TreeNode) loaded.getRoot()));
+
+        Object gibson = loaded.getChild(loaded.getRoot(), 1);
+        Object length = loaded.getChild(gibson, 0);
+        assertEquals(13, ((CompactTreeModel.Node) length).getUserObject());
+        assertEquals(0, loaded.getIndexOfChild(gibson, length));
+        assertEquals(gibson, ((TreeNode) length).getParent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void write_GivenUserObjectNotStringOrPrimitive() throws IOException {
+        CollectionTreeModel<Book> model = new CollectionTreeModel.Builder<>(
+                testBookList)
+                .addNode(b -> b.author)
+                .addNode(b -> b).build();
+
+        model.writeSnapshot(folder.newFile().toPath());
+    }
+
+    @Test
+    public void load_GivenCorruptStructureThenRejected() throws IOException {
+        Path file = folder.newFile().toPath();
+        compactModel.write(file);
+        byte[] snapshot = Files.readAllBytes(file);
+
+        // Header of four ints, then parent, first child, child count and
+        // value id per node: give the root more children than nodes.
+        ByteBuffer.wrap(snapshot).putInt(16 + 8, 1000);
+        Files.write(file, snapshot);
+
+        thrown.expect(IOException.class);
+        thrown.expectMessage("Corrupt tree snapshot");
+        CompactTreeModel.load(file);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void load_GivenCorruptValueThenFailsWhenVisited()
+            throws IOException {
+        Path file = folder.newFile().toPath();
+        compactModel.write(file);
+        byte[] snapshot = Files.readAllBytes(file);
+
+        // The root's value is the first; its type tag starts the value data.
+        int dataStart = 16 + 13 * 16 + (ByteBuffer.wrap(snapshot).getInt(12)
+                + 1) * 4;
+        snapshot[dataStart] = 99;
+        Files.write(file, snapshot);
+
+        CompactTreeModel loaded = CompactTreeModel.load(file);
+        ((CompactTreeModel.Node) loaded.getRoot()).getUserObject();
+    }
+
+    @Test(expected = IOException.class)
+    public void load_GivenFileNotSnapshot() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, "Not a snapshot at all".getBytes("UTF-8"));
+
+        CompactTreeModel.load(file);
+    }
+}
@@ -0,0 +1,198 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import javax.swing.event.TreeModelEvent;
+import javax.swing.tree.TreeNode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class FilteredTreeModelTest {
+
+    private final List<Book> testBookList = Lists.newArrayList(
+            new Book("Orbit", "Iain M.Banks", "The Player Of Games"),
+            new Book("Orbit", "Iain M.Banks", "Use Of Weapons"),
+            new Book("Penguin", "William Gibson", "Virtual Light"),
+            new Book("Putnam", "William Gibson", "Pattern Recognition"),
+            new Book("Putnam", "Philip K.Dick", "The Man in the High Castle"));
+
+    private CollectionTreeModel<Book> collectionModel;
+    private FilteredTreeModel<Book> filteredModel;
+
+    @Before
+    public void beforeEachTest() {
+        collectionModel = new CollectionTreeModel.Builder<>(testBookList)
+                .addNode(b -> b.publisher)
+                .addNode(b -> b.author)
+                .addNode(b -> b.title).build();
+        filteredModel = new FilteredTreeModel<>(collectionModel);
+    }
+
+    @Test
+    public void setFilter_GivenNoFilterThenSameTree() {
+        assertEquals(5, filteredModel.getMatchCount());
+        assertEquals(TreeUtils.toString((TreeNode) collectionModel.getRoot()),
+                toString(filteredModel, filteredModel.getRoot(), 0));
+    }
+
+    @Test
+    public void setFilter_GivenPredicateThenEmptyGroupsHidden() {
+        filteredModel.setFilter(b -> b.title.contains("Of"));
+
+        assertEquals("+ root\n" +
+                "  + Orbit\n" +
+                "    + Iain M.Banks\n" +
+                "      - The Player Of Games\n" +
+                "      - Use Of Weapons\n",
+                toString(filteredModel, filteredModel.getRoot(), 0));
+    }
+
+    @Test
+    public void setFilter_GivenShownGroupsThenOnlyDifferencesFired() {
+        Object root = filteredModel.getRoot();
+        Object orbit = filteredModel.getChild(root, 0);
+        TreeModelEventRecorder recorder = new TreeModelEventRecorder();
+        filteredModel.addTreeModelListener(recorder);
+
+        filteredModel.setFilter(b -> b.publisher.equals("Orbit"));
+        TreeModelEvent e = recorder.getOnlyEvent("removed");
+        assertArrayEquals(new Object[] { root }, e.getPath());
+        assertArrayEquals(new int[] { 1, 2 }, e.getChildIndices());
+
+        recorder = new TreeModelEventRecorder();
+        filteredModel.addTreeModelListener(recorder);
+        filteredModel.clearFilter();
+        e = recorder.getOnlyEvent("inserted");
+        assertArrayEquals(new int[] { 1, 2 }, e.getChildIndices());
+        assertSame(orbit, filteredModel.getChild(root, 0));
+    }
+
+    @Test
+    public void setFilter_GivenMostNodesRemovedThenRenumberedWithoutEvents() {
+        Object root = filteredModel.getRoot();
+        Object banks = filteredModel.getChild(filteredModel.getChild(root, 0),
+                0);
+        filteredModel.getChildCount(banks);
+        collectionModel.removeRecords(testBookList.subList(2, 5));
+        TreeModelEventRecorder recorder = new TreeModelEventRecorder();
+        filteredModel.addTreeModelListener(recorder);
+
+        filteredModel.setFilter(b -> b.title.startsWith("Use"));
+
+        TreeModelEvent e = recorder.getOnlyEvent("removed");
+        assertEquals(banks, e.getPath()[2]);
+        assertArrayEquals(new int[] { 0 }, e.getChildIndices());
+        assertEquals(1, filteredModel.getChildCount(banks));
+    }
+
+    @Test
+    public void narrowFilter_GivenFilterThenBothApply() {
+        filteredModel.setFilter(b -> b.author.equals("William Gibson"));
+        filteredModel.narrowFilter(b -> b.publisher.equals("Putnam"));
+
+        Object putnam = filteredModel.getChild(filteredModel.getRoot(), 0);
+        assertEquals("Putnam", putnam.toString());
+        assertEquals(0, filteredModel.getIndexOfChild(
+                filteredModel.getRoot(), putnam));
+        assertEquals(1, filteredModel.getChildCount(putnam));
+        assertEquals(1, filteredModel.getMatchCount());
+
+        filteredModel.clearFilter();
+        assertSame(putnam, filteredModel.getChild(filteredModel.getRoot(), 2));
+    }
+
+    @Test
+    public void addRecords_GivenFilterThenReappliedToNewRecords() {
+        filteredModel.setFilter(b -> b.publisher.equals("Gollancz"));
+        collectionModel.addRecords(Lists.newArrayList(new Book("Gollancz",
+                "Alastair Reynolds", "Revelation Space")));
+
+        assertEquals(1, filteredModel.getMatchCount());
+        assertEquals("Gollancz", filteredModel.getChild(
+                filteredModel.getRoot(), 0).toString());
+    }
+
+    @Test
+    public void addRecords_GivenFilterThenOnlyVisibleChangesFired() {
+        filteredModel.setFilter(b -> b.author.equals("William Gibson"));
+        Object root = filteredModel.getRoot();
+        Object putnam = filteredModel.getChild(root, 1);
+        Object gibson = filteredModel.getChild(putnam, 0);
+        filteredModel.getChildCount(gibson);
+        TreeModelEventRecorder recorder = new TreeModelEventRecorder();
+        filteredModel.addTreeModelListener(recorder);
+
+        collectionModel.addRecords(Lists.newArrayList(new Book("Putnam",
+                "William Gibson", "Idoru"), new Book("Putnam",
+                        "Philip K.Dick", "Ubik")));
+
+        TreeModelEvent e = recorder.getOnlyEvent("inserted");
+        assertArrayEquals(new Object[] { root, putnam, gibson }, e.getPath());
+        assertArrayEquals(new int[] { 1 }, e.getChildIndices());
+        assertEquals("Idoru", e.getChildren()[0].toString());
+        assertEquals(2, filteredModel.getChildCount(gibson));
+        assertEquals(1, filteredModel.getIndexOfChild(gibson, filteredModel
+                .getChild(gibson, 1)));
+    }
+
+    @Test
+    public void removeRecords_GivenLastMatchInGroupThenGroupRemoved() {
+        filteredModel.setFilter(b -> b.author.equals("William Gibson"));
+        Object root = filteredModel.getRoot();
+        Object penguin = filteredModel.getChild(root, 0);
+        TreeModelEventRecorder recorder = new TreeModelEventRecorder();
+        filteredModel.addTreeModelListener(recorder);
+
+        collectionModel.removeRecords(Lists.newArrayList(testBookList.get(2),
+                testBookList.get(0)));
+
+        TreeModelEvent e = recorder.getOnlyEvent("removed");
+        assertArrayEquals(new Object[] { root }, e.getPath());
+        assertArrayEquals(new int[] { 0 }, e.getChildIndices());
+        assertSame(penguin, e.getChildren()[0]);
+        assertEquals(1, filteredModel.getChildCount(root));
+        assertEquals(1, filteredModel.getMatchCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_GivenRecordsNotRetained() {
+        new FilteredTreeModel<>(new CollectionTreeModel.Builder<>(testBookList)
+                .addNode(b -> b.publisher)
+                .addNode(b -> b.title).retainRecords(false).build());
+    }
+
+    @Test
+    public void dispose_GivenChangesThenNoLongerFollowed() {
+        TreeModelEventRecorder recorder = new TreeModelEventRecorder();
+        filteredModel.addTreeModelListener(recorder);
+        filteredModel.dispose();
+
+        collectionModel.addRecords(Lists.newArrayList(new Book("Gollancz",
+                "Alastair Reynolds", "Revelation Space")));
+
+        assertTrue(recorder.events.isEmpty());
+        assertEquals(5, filteredModel.getMatchCount());
+    }
+
+    private static String toString(FilteredTreeModel<?> model, Object node,
+            int level) {
+        StringBuilder sb = new StringBuilder();
+        for (int indents = 0; indents < level; indents++) {
+            sb.append("  ");
+        }
+        sb.append(model.isLeaf(node) ? "- " : "+ ").append(node).append("\n");
+
+        for (int i = 0; i < model.getChildCount(node); i++) {
+            sb.append(toString(model, model.getChild(node, i), level + 1));
+        }
+        return sb.toString();
+    }
+}
@@ -1,6 +1,12 @@
 package uk.cloudengine.swing.collectionTreeModel;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Comparator;
+import java.util.function.Function;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -95,6 +101,32 @@ public class HierarchyTest {
         assertEquals(1, testHierarchy.indexOf("Node1"));
     }
 
+    @Test
+    public void swapNodes_GivenSameProviderForTwoNodesThenIdsStayPaired() {
+        Function<Book, Object> author = b -> b.author;
+        testHierarchy.addNode(b -> b.publisher, "Publisher");
+        testHierarchy.addNode(author, "Author");
+        testHierarchy.addNode(author, "AuthorAgain");
+        testHierarchy.swapNodes("Publisher", "AuthorAgain");
+
+        assertEquals(ImmutableList.of("AuthorAgain", "Author", "Publisher"),
+                testHierarchy.getNodeIds());
+        assertSame(author, testHierarchy.getNodeObjectProviders().get(0));
+    }
+
+    @Test
+    public void getVersion_GivenHierarchyModified() {
+        long initial = testHierarchy.getVersion();
+        givenHierarchyWithThreeNamedNodes();
+        long added = testHierarchy.getVersion();
+        ImmutableList<Object> nodeIds = testHierarchy.getNodeIds();
+        testHierarchy.swapNodes(0, 2);
+
+        assertTrue(added > initial);
+        assertTrue(testHierarchy.getVersion() > added);
+        assertEquals(ImmutableList.of("Publisher", "Author", "Title"), nodeIds);
+    }
+
     @Test
     public void testThrowsIllegalArgumentException_GivenDuplicateNodeId() {
         thrown.expect(IllegalArgumentException.class);
@@ -104,6 +136,33 @@ public class HierarchyTest {
         testHierarchy.addNode(b -> b.title, "Author");
     }
 
+    @Test
+    public void setInterned() {
+        givenHierarchyWithThreeNamedNodes();
+        testHierarchy.setInterned("Author", true);
+
+        assertTrue(testHierarchy.isInterned("Author"));
+        assertFalse(testHierarchy.isInterned("Title"));
+    }
+
+    @Test
+    public void setInterned_GivenNodeIdDoesNotExist() {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage("Unknown node id ('foobarId').");
+
+        givenHierarchyWithThreeNamedNodes();
+        testHierarchy.setInterned("foobarId", true);
+    }
+
+    @Test
+    public void setComparator_GivenNodeIdDoesNotExist() {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage("Unknown node id ('foobarId').");
+
+        givenHierarchyWithThreeNamedNodes();
+        testHierarchy.setComparator("foobarId", Comparator.naturalOrder());
+    }
+
     private void givenHierarchyWithThreeNodes() {
         testHierarchy.addNode(b -> b.publisher);
         testHierarchy.addNode(b -> b.author);
@@ -0,0 +1,180 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import javax.swing.SwingUtilities;
+import javax.swing.tree.TreeNode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class ObservableCollectionBindingTest {
+
+    private final List<Book> testBookList = Lists.newArrayList(
+            new Book("Orbit", "Iain M.Banks", "The Player Of Games"),
+            new Book("Penguin", "William Gibson", "Virtual Light"));
+
+    private ObservableCollection<Book> books;
+    private CollectionTreeModel<Book> treeModel;
+
+    @Before
+    public void beforeEachTest() {
+        books = new ObservableCollection<>(new ArrayList<>(testBookList));
+        treeModel = new CollectionTreeModel.Builder<>(books)
+                .addNode(b -> b.publisher)
+                .addNode(b -> b.title).build();
+    }
+
+    @Test
+    public void bind_GivenChangesFromAnotherThreadThenCoalescedIntoModel()
+            throws Exception {
+        ObservableCollectionBinding<Book> binding =
+                new ObservableCollectionBinding<>(books, treeModel, 100, 100);
+        TreeModelEventRecorder recorder = new TreeModelEventRecorder();
+        treeModel.addTreeModelListener(recorder);
+        Book transientBook = new Book("Orbit", "Iain M.Banks", "Excession");
+
+        Thread feed = new Thread(() -> {
+            books.add(new Book("Orbit", "Iain M.Banks", "Use Of Weapons"));
+            books.add(transientBook);
+            books.remove(transientBook);
+            books.remove(testBookList.get(1));
+        });
+        feed.start();
+        feed.join();
+
+        awaitOnEventDispatchThread(() -> recorder.types.size() == 2);
+        assertEquals(Lists.newArrayList("removed", "inserted"),
+                recorder.types);
+        assertEquals("+ root\n" +
+                "  + Orbit\n" +
+                "    - The Player Of Games\n" +
+                "    - Use Of Weapons\n",
+                TreeUtils.toString((TreeNode) treeModel.getRoot()));
+        binding.unbind();
+    }
+
+    @Test
+    public void bind_GivenRecordRemovedChangedAndReaddedThenRegrouped()
+            throws Exception {
+        treeModel = new CollectionTreeModel.Builder<>(books)
+                .addNode(b -> b.publisher)
+                .addNode(b -> b.title).indexRecords().build();
+        ObservableCollectionBinding<Book> binding =
+                new ObservableCollectionBinding<>(books, treeModel, 100, 100);
+        TreeModelEventRecorder recorder = new TreeModelEventRecorder();
+        treeModel.addTreeModelListener(recorder);
+        Book book = testBookList.get(1);
+
+        synchronized (books) {
+            books.remove(book);
+            book.publisher = "Ace";
+            books.add(book);
+        }
+
+        awaitOnEventDispatchThread(() -> recorder.types.size() == 2);
+        assertEquals(Lists.newArrayList("removed", "inserted"),
+                recorder.types);
+        assertEquals("+ root\n" +
+                "  + Orbit\n" +
+                "    - The Player Of Games\n" +
+                "  + Ace\n" +
+                "    - Virtual Light\n",
+                TreeUtils.toString((TreeNode) treeModel.getRoot()));
+        binding.unbind();
+    }
+
+    @Test
+    public void bind_GivenMoreChangesThanBatchSizeThenRebuilt()
+            throws Exception {
+        ObservableCollectionBinding<Book> binding =
+                new ObservableCollectionBinding<>(books, treeModel, 10, 1);
+        TreeModelEventRecorder recorder = new TreeModelEventRecorder();
+        treeModel.addTreeModelListener(recorder);
+
+        books.addAll(Lists.newArrayList(
+                new Book("Ace", "William Gibson", "Neuromancer"),
+                new Book("Ace", "William Gibson", "Count Zero")));
+
+        awaitOnEventDispatchThread(() -> !recorder.types.isEmpty());
+        assertEquals(Lists.newArrayList("structureChanged"), recorder.types);
+        assertEquals(3, treeModel.getChildCount(treeModel.getRoot()));
+        binding.unbind();
+    }
+
+    @Test
+    public void bind_GivenChangesDuringRebuildThenAppliedAfterIt()
+            throws Exception {
+        List<Runnable> rebuilds = Collections.synchronizedList(
+                new ArrayList<>());
+        ObservableCollectionBinding<Book> binding =
+                new ObservableCollectionBinding<>(books, treeModel, 10, 1,
+                        rebuilds::add);
+
+        books.addAll(Lists.newArrayList(
+                new Book("Ace", "William Gibson", "Neuromancer"),
+                new Book("Ace", "William Gibson", "Count Zero")));
+        awaitOnEventDispatchThread(() -> !rebuilds.isEmpty());
+        books.add(new Book("Ace", "William Gibson", "Mona Lisa Overdrive"));
+        Thread.sleep(50);
+        assertEquals(2, treeModel.getChildCount(treeModel.getRoot()));
+
+        rebuilds.get(0).run();
+        awaitOnEventDispatchThread(() -> treeModel.getChildCount(treeModel
+                .getRoot()) == 3 && treeModel.getChildCount(treeModel
+                        .getChild(treeModel.getRoot(), 2)) == 3);
+        binding.unbind();
+    }
+
+    @Test
+    public void bind_GivenCachedKeysAndMoreChangesThanBatchSizeThenRebuilt()
+            throws Exception {
+        treeModel = new CollectionTreeModel.Builder<>(books)
+                .addNode(b -> b.publisher)
+                .addNode(b -> b.title).cacheKeys().build();
+        ObservableCollectionBinding<Book> binding =
+                new ObservableCollectionBinding<>(books, treeModel, 10, 2);
+        TreeModelEventRecorder recorder = new TreeModelEventRecorder();
+        treeModel.addTreeModelListener(recorder);
+
+        List<Book> added = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            added.add(new Book("Ace", "William Gibson", "Book " + i));
+        }
+        books.addAll(added);
+
+        awaitOnEventDispatchThread(() -> !recorder.types.isEmpty());
+        Object ace = treeModel.getChild(treeModel.getRoot(), 2);
+        assertEquals("Ace", ace.toString());
+        assertEquals(5, treeModel.getChildCount(ace));
+        binding.unbind();
+    }
+
+    private static void awaitOnEventDispatchThread(BooleanSupplier condition)
+            throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        boolean[] met = new boolean[1];
+
+        while (System.nanoTime() < deadline) {
+            SwingUtilities.invokeAndWait(() -> met[0] = condition
+                    .getAsBoolean());
+            if (met[0]) {
+                // Let any remaining queued tick run before asserting.
+                Thread.sleep(50);
+                SwingUtilities.invokeAndWait(() -> {
+                });
+                return;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Timed out waiting for the model.");
+    }
+}
@@ -0,0 +1,100 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.event.TreeModelEvent;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class PagedTreeModelTest {
+
+    private CollectionTreeModel<Book> collectionModel;
+    private PagedTreeModel pagedModel;
+
+    @Before
+    public void beforeEachTest() {
+        List<Book> books = new ArrayList<>();
+        for (int i = 1; i <= 25; i++) {
+            books.add(new Book("Orbit", "Iain M.Banks", String.format(
+                    "Book %02d", i)));
+        }
+        collectionModel = new CollectionTreeModel.Builder<>(books)
+                .addNode(b -> b.publisher)
+                .addNode(b -> b.title).build();
+        pagedModel = new PagedTreeModel(collectionModel, 3);
+    }
+
+    @Test
+    public void getChild_GivenLargeGroupThenNestedRanges() {
+        Object orbit = pagedModel.getChild(pagedModel.getRoot(), 0);
+        Object last = pagedModel.getChild(orbit, 2);
+        Object lastButOne = pagedModel.getChild(last, 1);
+
+        assertEquals("Orbit", orbit.toString());
+        assertEquals(3, pagedModel.getChildCount(orbit));
+        assertEquals("1\u20139", pagedModel.getChild(orbit, 0).toString());
+        assertEquals("19\u201325", last.toString());
+        assertEquals("22\u201324", lastButOne.toString());
+        assertEquals("Book 23", pagedModel.getChild(lastButOne, 1).toString());
+        assertEquals("Book 25", pagedModel.getChild(pagedModel.getChild(last,
+                2), 0).toString());
+
+        assertEquals(2, pagedModel.getIndexOfChild(orbit, pagedModel.getChild(
+                orbit, 2)));
+        assertEquals(1, pagedModel.getIndexOfChild(lastButOne, pagedModel
+                .getChild(lastButOne, 1)));
+        assertEquals(-1, pagedModel.getIndexOfChild(orbit, pagedModel
+                .getChild(lastButOne, 1)));
+        assertTrue(getMaxChildCount(pagedModel.getRoot()) <= 3);
+    }
+
+    @Test
+    public void addRecords_GivenPagedGroupThenStructureChanged() {
+        TreeModelEventRecorder recorder = new TreeModelEventRecorder();
+        pagedModel.addTreeModelListener(recorder);
+        Object orbit = pagedModel.getChild(pagedModel.getRoot(), 0);
+
+        collectionModel.addRecords(Lists.newArrayList(new Book("Orbit",
+                "Iain M.Banks", "Book 26")));
+        TreeModelEvent e = recorder.getOnlyEvent("structureChanged");
+        assertArrayEquals(new Object[] { pagedModel.getRoot(), orbit },
+                e.getPath());
+        assertEquals("19\u201326", pagedModel.getChild(orbit, 2).toString());
+
+        recorder = new TreeModelEventRecorder();
+        pagedModel.addTreeModelListener(recorder);
+        collectionModel.addRecords(Lists.newArrayList(new Book("Gollancz",
+                "Alastair Reynolds", "Revelation Space")));
+        e = recorder.getOnlyEvent("inserted");
+        assertArrayEquals(new int[] { 1 }, e.getChildIndices());
+    }
+
+    @Test
+    public void dispose_GivenChangesThenNoLongerFollowed() {
+        TreeModelEventRecorder recorder = new TreeModelEventRecorder();
+        pagedModel.addTreeModelListener(recorder);
+        pagedModel.dispose();
+
+        collectionModel.addRecords(Lists.newArrayList(new Book("Gollancz",
+                "Alastair Reynolds", "Revelation Space")));
+
+        assertTrue(recorder.events.isEmpty());
+    }
+
+    private int getMaxChildCount(Object node) {
+        int max = pagedModel.getChildCount(node);
+        for (int i = 0; i < pagedModel.getChildCount(node); i++) {
+            max = Math.max(max, getMaxChildCount(pagedModel.getChild(node,
+                    i)));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,98 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import uk.cloudengine.swing.collectionTreeModel.TreeModelEventBatch.Event;
+import uk.cloudengine.swing.collectionTreeModel.TreeModelEventBatch.Type;
+
+public class TreeModelEventBatchTest {
+
+    private final Object parent = "parent";
+    private final Object[] path = { parent };
+
+    @Test(timeout = 5000)
+    public void merge_GivenManyRemovalsFromFrontThenOneRemovedEvent() {
+        TreeModelEventBatch batch = new TreeModelEventBatch();
+        int n = 80000;
+
+        for (int i = 0; i < n; i++) {
+            batch.add(Type.REMOVED, this, path, new int[] { 0 },
+                    new Object[] { i });
+        }
+        List<Event> merged = batch.merge();
+
+        assertEquals(1, merged.size());
+        assertEquals(Type.REMOVED, merged.get(0).type);
+        assertEquals(n, merged.get(0).childIndices.length);
+        assertEquals(n - 1, merged.get(0).childIndices[n - 1]);
+    }
+
+    @Test
+    public void merge_GivenRandomChangesThenEventsReplayToSameChildren() {
+        Random random = new Random(42);
+        List<Object> before = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            before.add("original " + i);
+        }
+        List<Object> after = new ArrayList<>(before);
+        Set<Object> changed = new HashSet<>();
+        TreeModelEventBatch batch = new TreeModelEventBatch();
+
+        for (int i = 0; i < 500; i++) {
+            int op = random.nextInt(3);
+            if (op == 0 || after.isEmpty()) {
+                int index = random.nextInt(after.size() + 1);
+                Object child = "inserted " + i;
+                after.add(index, child);
+                batch.add(Type.INSERTED, this, path, new int[] { index },
+                        new Object[] { child });
+            } else if (op == 1) {
+                int index = random.nextInt(after.size());
+                Object child = after.remove(index);
+                batch.add(Type.REMOVED, this, path, new int[] { index },
+                        new Object[] { child });
+            } else {
+                int index = random.nextInt(after.size());
+                changed.add(after.get(index));
+                batch.add(Type.CHANGED, this, path, new int[] { index },
+                        new Object[] { after.get(index) });
+            }
+        }
+
+        List<Object> replayed = new ArrayList<>(before);
+        for (Event e : batch.merge()) {
+            switch (e.type) {
+            case REMOVED:
+                for (int i = e.childIndices.length - 1; i >= 0; i--) {
+                    assertEquals(e.children[i], replayed.remove(
+                            e.childIndices[i]));
+                }
+                break;
+            case INSERTED:
+                for (int i = 0; i < e.childIndices.length; i++) {
+                    replayed.add(e.childIndices[i], e.children[i]);
+                }
+                break;
+            case CHANGED:
+                for (int i = 0; i < e.childIndices.length; i++) {
+                    assertEquals(e.children[i], after.get(
+                            e.childIndices[i]));
+                    assertTrue(changed.contains(e.children[i]));
+                }
+                break;
+            default:
+                throw new AssertionError(e.type);
+            }
+        }
+        assertEquals(after, replayed);
+    }
+}
@@ -0,0 +1,47 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+
+class TreeModelEventRecorder implements TreeModelListener {
+
+    final List<String> types = new ArrayList<>();
+    final List<TreeModelEvent> events = new ArrayList<>();
+
+    @Override
+    public void treeNodesChanged(TreeModelEvent e) {
+        record("changed", e);
+    }
+
+    @Override
+    public void treeNodesInserted(TreeModelEvent e) {
+        record("inserted", e);
+    }
+
+    @Override
+    public void treeNodesRemoved(TreeModelEvent e) {
+        record("removed", e);
+    }
+
+    @Override
+    public void treeStructureChanged(TreeModelEvent e) {
+        record("structureChanged", e);
+    }
+
+    private void record(String type, TreeModelEvent e) {
+        types.add(type);
+        events.add(e);
+    }
+
+    TreeModelEvent getOnlyEvent(String expectedType) {
+        if (!types.equals(Collections.singletonList(expectedType))) {
+            throw new AssertionError("Expected a single " + expectedType
+                    + " event but got " + types);
+        }
+        return events.get(0);
+    }
+}
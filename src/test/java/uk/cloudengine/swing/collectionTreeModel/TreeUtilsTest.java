@@ -0,0 +1,118 @@
+package uk.cloudengine.swing.collectionTreeModel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+import javax.swing.tree.TreeNode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import uk.cloudengine.swing.collectionTreeModel.TreeUtils.Order;
+
+public class TreeUtilsTest {
+
+    private final List<Book> testBookList = Lists.newArrayList(
+            new Book("Orbit", "Iain M.Banks", "The Player Of Games"),
+            new Book("Orbit", "Iain M.Banks", "Use Of Weapons"),
+            new Book("Penguin", "William Gibson", "Virtual Light"));
+
+    private TreeNode root;
+
+    @Before
+    public void beforeEachTest() {
+        root = (TreeNode) new CollectionTreeModel.Builder<>(testBookList)
+                .addNode(b -> b.publisher)
+                .addNode(b -> b.author)
+                .addNode(b -> b.title).build().getRoot();
+    }
+
+    @Test
+    public void stream_GivenPreOrder() {
+        assertEquals("[root, Orbit, Iain M.Banks, The Player Of Games, " +
+                "Use Of Weapons, Penguin, William Gibson, Virtual Light]",
+                TreeUtils.stream(root, Order.PRE_ORDER)
+                        .collect(Collectors.toList()).toString());
+    }
+
+    @Test
+    public void stream_GivenPostOrder() {
+        assertEquals("[The Player Of Games, Use Of Weapons, Iain M.Banks, " +
+                "Orbit, Virtual Light, William Gibson, Penguin, root]",
+                TreeUtils.stream(root, Order.POST_ORDER)
+                        .collect(Collectors.toList()).toString());
+    }
+
+    @Test
+    public void stream_GivenBreadthFirst() {
+        assertEquals("[root, Orbit, Penguin, Iain M.Banks, William Gibson, " +
+                "The Player Of Games, Use Of Weapons, Virtual Light]",
+                TreeUtils.stream(root, Order.BREADTH_FIRST)
+                        .collect(Collectors.toList()).toString());
+    }
+
+    @Test
+    public void stream_GivenParallelThenSameOrderAsSequential() {
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            books.add(new Book("Publisher" + (i * 7 % 13),
+                    "Author" + (i * 31 % 997), "Title" + i));
+        }
+        TreeNode largeRoot = (TreeNode) new CollectionTreeModel.Builder<>(
+                books).addNode(b -> b.publisher).addNode(b -> b.author)
+                .addNode(b -> b.title).build().getRoot();
+
+        for (Order order : Order.values()) {
+            assertEquals(order.toString(),
+                    TreeUtils.stream(largeRoot, order)
+                            .collect(Collectors.toList()),
+                    TreeUtils.stream(largeRoot, order).parallel()
+                            .collect(Collectors.toList()));
+        }
+        assertEquals(books.size(), TreeUtils.leaves(largeRoot).parallel()
+                .count());
+    }
+
+    @Test
+    public void trySplit_GivenFreshSpliteratorThenSplitsBelowRoot() {
+        assertSplitBelowRoot(new TreeSpliterators.PreOrder(root),
+                "[root, Orbit, Iain M.Banks, The Player Of Games, "
+                        + "Use Of Weapons]");
+        assertSplitBelowRoot(new TreeSpliterators.PostOrder(root),
+                "[The Player Of Games, Use Of Weapons, Iain M.Banks, "
+                        + "Orbit]");
+    }
+
+    private void assertSplitBelowRoot(Spliterator<TreeNode> suffix,
+            String expectedPrefix) {
+        Spliterator<TreeNode> prefix = suffix.trySplit();
+        assertNotNull(prefix);
+
+        List<TreeNode> nodes = new ArrayList<>();
+        prefix.forEachRemaining(nodes::add);
+        assertEquals(expectedPrefix, nodes.toString());
+        suffix.forEachRemaining(nodes::add);
+        assertEquals(8, nodes.size());
+    }
+
+    @Test
+    public void getPreOrderEnumeration_GivenSubtree() {
+        TreeNode orbit = root.getChildAt(0);
+        List<TreeNode> nodes = new ArrayList<>();
+
+        Enumeration<TreeNode> en = TreeUtils.getPreOrderEnumeration(orbit);
+        while (en.hasMoreElements()) {
+            nodes.add(en.nextElement());
+        }
+        assertEquals("[Orbit, Iain M.Banks, The Player Of Games, " +
+                "Use Of Weapons]", nodes.toString());
+    }
+}